@@ -0,0 +1,176 @@
+package com.laioffer.jupiter.auth;
+
+import com.laioffer.jupiter.db.MySQLConnection;
+import com.laioffer.jupiter.db.MySQLException;
+import com.laioffer.jupiter.db.UserCredentials;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Verifies logins against the stored password hashes.
+// - The stored hash is read by user id and checked in the application, by the PasswordHasher that produced it.
+// - A hash of an outdated scheme or cost, e.g. the legacy MD5 one, is replaced by a hash of the preferred hasher on a successful login.
+// - Successful logins are remembered for a short time in a bounded cache, so a storm of logins of the same users
+//   costs one slow hash each. The cache keeps a keyed HMAC of the password, never the password itself.
+// - A login of an unknown user or with a hash of a cheaper scheme still costs one hash of the preferred hasher,
+//   so the response time does not tell which user ids exist.
+// - Failed logins are counted per (user id, client address) and per client address, see LoginThrottle. Past the limit
+//   the login is refused with LoginThrottledException before any hashing. Failures are not counted per user id alone,
+//   otherwise anyone could lock a user out by failing logins with their id on purpose.
+public class CredentialVerifier {
+    private static final int MAX_CACHED_LOGINS = Integer.getInteger("jupiter.auth.cache.maxEntries", 10000);
+    private static final long CACHE_TTL_MILLIS = Long.getLong("jupiter.auth.cache.ttlMillis", 60_000);
+    private static final int MAX_FAILURES_PER_USER_ADDRESS = Integer.getInteger("jupiter.auth.throttle.maxFailuresPerUserAddress", 10);
+    private static final int MAX_FAILURES_PER_ADDRESS = Integer.getInteger("jupiter.auth.throttle.maxFailuresPerAddress", 100);
+    private static final long THROTTLE_WINDOW_MILLIS = Long.getLong("jupiter.auth.throttle.windowMillis", 300_000);
+    private static final int MAX_THROTTLED_KEYS = Integer.getInteger("jupiter.auth.throttle.maxKeys", 100_000);
+
+    private static final CredentialVerifier INSTANCE = new CredentialVerifier();
+
+    private static class CachedLogin {
+        private final byte[] fingerprint;
+        private final String name;
+        private final long expiresAt;
+
+        CachedLogin(byte[] fingerprint, String name, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final PasswordHasher preferred = new Pbkdf2Hasher();
+    private final List<PasswordHasher> hashers = Arrays.asList(preferred, new LegacyMd5Hasher());
+    // Random per process, so the fingerprints in the cache are useless outside of it
+    private final SecretKeySpec fingerprintKey;
+    // Verified instead when there is no hash of the preferred hasher to verify, it never matches a real password
+    private final String dummyHash = preferred.hash("", UUID.randomUUID().toString());
+    private final LoginThrottle userAddressThrottle = new LoginThrottle(MAX_FAILURES_PER_USER_ADDRESS, THROTTLE_WINDOW_MILLIS, MAX_THROTTLED_KEYS);
+    private final LoginThrottle addressThrottle = new LoginThrottle(MAX_FAILURES_PER_ADDRESS, THROTTLE_WINDOW_MILLIS, MAX_THROTTLED_KEYS);
+
+    // Access-ordered so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, CachedLogin> cachedLogins = new LinkedHashMap<String, CachedLogin>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedLogin> eldest) {
+            return size() > MAX_CACHED_LOGINS;
+        }
+    };
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong upgrades = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private CredentialVerifier() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        fingerprintKey = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    public static CredentialVerifier getInstance() {
+        return INSTANCE;
+    }
+
+    // Hash a new password for storage, e.g. on registration
+    public String hashNewPassword(String userId, String password) {
+        return preferred.hash(userId, password);
+    }
+
+    // Return the name of the user if the password is correct, otherwise an empty string.
+    // clientAddress: where the login comes from, e.g. the remote address of the request, for the throttling.
+    public String verify(String userId, String password, String clientAddress) throws MySQLException, LoginThrottledException {
+        byte[] fingerprint = fingerprint(userId, password);
+        CachedLogin cached;
+        synchronized (cachedLogins) {
+            cached = cachedLogins.get(userId);
+        }
+        if (cached != null && System.currentTimeMillis() < cached.expiresAt && MessageDigest.isEqual(cached.fingerprint, fingerprint)) {
+            cacheHits.incrementAndGet();
+            return cached.name;
+        }
+
+        String userAddress = userId + "\u0000" + clientAddress;
+        long now = System.currentTimeMillis();
+        long retryAfterMillis = Math.max(userAddressThrottle.retryAfterMillis(userAddress, now), addressThrottle.retryAfterMillis(clientAddress, now));
+        if (retryAfterMillis > 0) {
+            throttled.incrementAndGet();
+            throw new LoginThrottledException("Too many failed logins", (retryAfterMillis + 999) / 1000);
+        }
+        verifications.incrementAndGet();
+        MySQLConnection connection = null;
+        try {
+            connection = new MySQLConnection();
+            UserCredentials credentials = connection.getCredentials(userId);
+            String storedHash = credentials == null ? null : credentials.getPasswordHash();
+            PasswordHasher hasher = storedHash == null ? null : hasherOf(storedHash);
+            if (hasher == null || !hasher.verify(userId, password, storedHash)) {
+                if (hasher != preferred) {
+                    // Cost the same as a wrong password of a user with a preferred hash
+                    preferred.verify(userId, password, dummyHash);
+                }
+                failures.incrementAndGet();
+                userAddressThrottle.recordFailure(userAddress, System.currentTimeMillis());
+                addressThrottle.recordFailure(clientAddress, System.currentTimeMillis());
+                return "";
+            }
+            userAddressThrottle.reset(userAddress);
+            if (hasher != preferred || hasher.needsRehash(storedHash)) {
+                // The password is known to be right here, so it can be hashed again with the current scheme
+                if (connection.updatePassword(userId, storedHash, preferred.hash(userId, password))) {
+                    upgrades.incrementAndGet();
+                }
+            }
+            synchronized (cachedLogins) {
+                cachedLogins.put(userId, new CachedLogin(fingerprint, credentials.getName(), System.currentTimeMillis() + CACHE_TTL_MILLIS));
+            }
+            return credentials.getName();
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private PasswordHasher hasherOf(String storedHash) {
+        for (PasswordHasher hasher : hashers) {
+            if (hasher.canVerify(storedHash)) {
+                return hasher;
+            }
+        }
+        return null;
+    }
+
+    private byte[] fingerprint(String userId, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(fingerprintKey);
+            mac.update(userId.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    // e.g. {"cachedLogins":120, "cacheHits":3000, "verifications":500, "failures":20, "upgrades":40, "throttled":5, "trackedUserAddresses":12, "trackedAddresses":3}
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        synchronized (cachedLogins) {
+            stats.put("cachedLogins", (long) cachedLogins.size());
+        }
+        stats.put("cacheHits", cacheHits.get());
+        stats.put("verifications", verifications.get());
+        stats.put("failures", failures.get());
+        stats.put("upgrades", upgrades.get());
+        stats.put("throttled", throttled.get());
+        stats.put("trackedUserAddresses", (long) userAddressThrottle.size());
+        stats.put("trackedAddresses", (long) addressThrottle.size());
+        return stats;
+    }
+}
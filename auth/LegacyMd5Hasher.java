@@ -0,0 +1,31 @@
+package com.laioffer.jupiter.auth;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+// The original scheme: md5(userId + md5(password)) as 32 lowercase hex characters.
+// It is only kept to verify the hashes stored before Pbkdf2Hasher, which are upgraded on the next successful login.
+public class LegacyMd5Hasher implements PasswordHasher {
+    @Override
+    public String hash(String userId, String password) {
+        return DigestUtils.md5Hex(userId + DigestUtils.md5Hex(password)).toLowerCase();
+    }
+
+    @Override
+    public boolean verify(String userId, String password, String storedHash) {
+        return MessageDigest.isEqual(hash(userId, password).getBytes(StandardCharsets.US_ASCII),
+                storedHash.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public boolean canVerify(String storedHash) {
+        return storedHash.length() == 32 && storedHash.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    @Override
+    public boolean needsRehash(String storedHash) {
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package com.laioffer.jupiter.auth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Counts failed logins per key, e.g. per (user id, client address) or per client address, in fixed windows of windowMillis.
+// A key with maxFailures failures in its current window is refused until the window ends, so guessing passwords
+// costs the attacker time instead of costing the server one slow hash per guess.
+// The least recently used keys are forgotten beyond maxKeys, which bounds the memory.
+class LoginThrottle {
+    private static class Window {
+        private final long start;
+        private int failures;
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+
+    private final int maxFailures;
+    private final long windowMillis;
+    // Access-ordered so the eldest entry is the least recently used one, guarded by this
+    private final LinkedHashMap<String, Window> windows;
+
+    LoginThrottle(int maxFailures, long windowMillis, int maxKeys) {
+        this.maxFailures = maxFailures;
+        this.windowMillis = windowMillis;
+        this.windows = new LinkedHashMap<String, Window>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    // 0 when the key may try to log in now, otherwise how long it has to wait
+    synchronized long retryAfterMillis(String key, long now) {
+        Window window = windows.get(key);
+        if (window == null || now >= window.start + windowMillis) {
+            return 0;
+        }
+        return window.failures >= maxFailures ? window.start + windowMillis - now : 0;
+    }
+
+    synchronized void recordFailure(String key, long now) {
+        Window window = windows.get(key);
+        if (window == null || now >= window.start + windowMillis) {
+            window = new Window(now);
+            windows.put(key, window);
+        }
+        window.failures++;
+    }
+
+    synchronized void reset(String key) {
+        windows.remove(key);
+    }
+
+    synchronized int size() {
+        return windows.size();
+    }
+}
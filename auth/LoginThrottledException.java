@@ -0,0 +1,16 @@
+package com.laioffer.jupiter.auth;
+
+// Thrown when a login is refused without checking the password, because the user id from the client address, or the client address,
+// had too many failed logins recently. The client may try again after getRetryAfterSeconds().
+public class LoginThrottledException extends RuntimeException {
+    private final long retryAfterSeconds;
+
+    public LoginThrottledException(String errorMessage, long retryAfterSeconds) {
+        super(errorMessage);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,17 @@
+package com.laioffer.jupiter.auth;
+
+// One way of hashing the passwords stored in the users table. CredentialVerifier picks the hasher of a stored hash by its format,
+// so hashes of several schemes can live side by side while old ones are upgraded.
+public interface PasswordHasher {
+    // Hash the password for storage, the user id may be used as part of the salt
+    String hash(String userId, String password);
+
+    // Check the password against a hash this hasher produced, in constant time
+    boolean verify(String userId, String password, String storedHash);
+
+    // Return true if the stored hash was produced by this hasher
+    boolean canVerify(String storedHash);
+
+    // Return true if the stored hash should be replaced by a new hash of the password, e.g. because its cost is too low
+    boolean needsRehash(String storedHash);
+}
@@ -0,0 +1,80 @@
+package com.laioffer.jupiter.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+// PBKDF2-HMAC-SHA256 with a random salt, stored as "pbkdf2$<iterations>$<base64 salt>$<base64 hash>".
+// The iteration count is the cost: every login costs about iterations HMAC computations on one core.
+// It is read from jupiter.auth.pbkdf2.iterations, run Pbkdf2HasherBenchmark on the production hardware to see the logins per second
+// per core of a few settings. Hashes with fewer iterations than the current setting are upgraded on the next successful login.
+public class Pbkdf2Hasher implements PasswordHasher {
+    private static final String PREFIX = "pbkdf2";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    static final int DEFAULT_ITERATIONS = Integer.getInteger("jupiter.auth.pbkdf2.iterations", 100_000);
+
+    private final SecureRandom random = new SecureRandom();
+    private final int iterations;
+
+    public Pbkdf2Hasher() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    public Pbkdf2Hasher(int iterations) {
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String hash(String userId, String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + "$" + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(derive(password, salt, iterations));
+    }
+
+    @Override
+    public boolean verify(String userId, String password, String storedHash) {
+        String[] parts = storedHash.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[3]);
+            return MessageDigest.isEqual(expected, derive(password, decoder.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean canVerify(String storedHash) {
+        return storedHash.startsWith(PREFIX + "$");
+    }
+
+    @Override
+    public boolean needsRehash(String storedHash) {
+        String[] parts = storedHash.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
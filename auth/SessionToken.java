@@ -0,0 +1,39 @@
+package com.laioffer.jupiter.auth;
+
+// The claims of a signed session token, see SessionTokenCodec. Times are in epoch seconds.
+// tokenId stays the same when the token is refreshed, so revoking it logs out every refreshed copy.
+public class SessionToken {
+    private final String userId;
+    private final String tokenId;
+    private final long issuedAt;
+    private final long expiresAt;
+
+    public SessionToken(String userId, String tokenId, long issuedAt, long expiresAt) {
+        this.userId = userId;
+        this.tokenId = tokenId;
+        this.issuedAt = issuedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    // When the user logged in, kept across refreshes
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    // The same session with a new expiry
+    public SessionToken withExpiresAt(long expiresAt) {
+        return new SessionToken(userId, tokenId, issuedAt, expiresAt);
+    }
+}
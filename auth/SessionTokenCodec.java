@@ -0,0 +1,101 @@
+package com.laioffer.jupiter.auth;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Signs and checks session tokens with HMAC-SHA256, no lookup is needed to trust a token.
+// A token looks like "v1.<keyId>.<base64url userId>.<tokenId>.<issuedAt>.<expiresAt>.<base64url signature>".
+// Keys are configured as jupiter.auth.token.keys=k2:<base64 secret>,k1:<base64 secret>. The first key signs new tokens,
+// the others are only accepted, so a key is rotated by putting a new one first and dropping the old one once its tokens expired.
+// Without configuration a random key is generated, which only works on a single node and logs everybody out on restart.
+public class SessionTokenCodec {
+    private static final String VERSION = "v1";
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final SessionTokenCodec INSTANCE = new SessionTokenCodec(System.getProperty("jupiter.auth.token.keys"));
+
+    private final String signingKeyId;
+    private final Map<String, SecretKeySpec> keys = new LinkedHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    SessionTokenCodec(String keyConfig) {
+        if (keyConfig == null || keyConfig.trim().isEmpty()) {
+            System.err.println("jupiter.auth.token.keys is not set, session tokens are signed with a random key of this process");
+            byte[] secret = new byte[32];
+            random.nextBytes(secret);
+            keys.put("local", new SecretKeySpec(secret, ALGORITHM));
+        } else {
+            for (String entry : keyConfig.split(",")) {
+                String[] parts = entry.trim().split(":", 2);
+                if (parts.length != 2 || parts[0].isEmpty() || parts[0].contains(".")) {
+                    throw new IllegalArgumentException("Invalid session token key " + parts[0]);
+                }
+                keys.put(parts[0], new SecretKeySpec(Base64.getDecoder().decode(parts[1]), ALGORITHM));
+            }
+        }
+        signingKeyId = keys.keySet().iterator().next();
+    }
+
+    public static SessionTokenCodec getInstance() {
+        return INSTANCE;
+    }
+
+    // Return a random id for a new session
+    public String newTokenId() {
+        byte[] id = new byte[12];
+        random.nextBytes(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+    }
+
+    public String encode(SessionToken token) {
+        String unsigned = VERSION + "." + signingKeyId + "."
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(token.getUserId().getBytes(StandardCharsets.UTF_8)) + "."
+                + token.getTokenId() + "." + token.getIssuedAt() + "." + token.getExpiresAt();
+        return unsigned + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(keys.get(signingKeyId), unsigned));
+    }
+
+    // Return the claims of a token with a valid signature of a known key, or null. Expiry is checked by the caller.
+    public SessionToken decode(String value) {
+        String[] parts = value.split("\\.");
+        if (parts.length != 7 || !VERSION.equals(parts[0])) {
+            return null;
+        }
+        SecretKeySpec key = keys.get(parts[1]);
+        if (key == null) {
+            return null;
+        }
+        try {
+            String unsigned = value.substring(0, value.lastIndexOf('.'));
+            byte[] signature = Base64.getUrlDecoder().decode(parts[6]);
+            if (!MessageDigest.isEqual(signature, sign(key, unsigned))) {
+                return null;
+            }
+            String userId = new String(Base64.getUrlDecoder().decode(parts[2]), StandardCharsets.UTF_8);
+            return new SessionToken(userId, parts[3], Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Return true if the token was not signed by the current signing key, so a refresh moves it to the new key
+    public boolean isSignedWithOldKey(String value) {
+        return !value.startsWith(VERSION + "." + signingKeyId + ".");
+    }
+
+    private static byte[] sign(SecretKeySpec key, String unsigned) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(unsigned.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.laioffer.jupiter.auth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Ids of the session tokens revoked by a logout, kept until the session could not be valid anyway.
+// Only logged-out sessions are kept, so the set stays small. It is held in memory: with several nodes a logout
+// only takes effect on the node that served it until the token expires, unless the set is replaced by a shared store.
+public class TokenRevocations {
+    private static final TokenRevocations INSTANCE = new TokenRevocations();
+    private static final int PURGE_INTERVAL = 1000;
+
+    // Token id -> epoch second after which the entry is no longer needed
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private int revokesSincePurge;
+
+    private TokenRevocations() {
+    }
+
+    public static TokenRevocations getInstance() {
+        return INSTANCE;
+    }
+
+    public void revoke(String tokenId, long untilEpochSecond) {
+        revoked.put(tokenId, untilEpochSecond);
+        boolean purge;
+        synchronized (this) {
+            purge = ++revokesSincePurge >= PURGE_INTERVAL;
+            if (purge) {
+                revokesSincePurge = 0;
+            }
+        }
+        if (purge) {
+            long now = System.currentTimeMillis() / 1000;
+            revoked.values().removeIf(until -> until < now);
+        }
+    }
+
+    public boolean isRevoked(String tokenId) {
+        return revoked.containsKey(tokenId);
+    }
+
+    public int size() {
+        return revoked.size();
+    }
+}
@@ -0,0 +1,61 @@
+package com.laioffer.jupiter.collection;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps string ids, e.g. Twitch game or item ids, to dense int codes 0, 1, 2, ... and back,
+// so hot paths can keep ids in primitive collections like IntHashSet and IntIntCountMap.
+// Codes are never reused, so the dictionary grows with the number of distinct ids encoded; only encode ids that are kept anyway.
+// Lookups are lock free, new ids are added under a lock.
+public class IdDictionary {
+    // Rough cost of one id besides its characters: the map node, the boxed code, the String header and the array slot
+    private static final int ENTRY_OVERHEAD_BYTES = 100;
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] ids = new String[16];
+    private int size;
+    private volatile long idChars;
+
+    // Return the code of the id, adding it if it is new
+    public int encode(String id) {
+        Integer code = codes.get(id);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(id);
+            if (code != null) {
+                return code;
+            }
+            String[] current = ids;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = id;
+            idChars += id.length();
+            // Publish the id before its code, so decode() of any visible code works
+            ids = current;
+            codes.put(id, size);
+            return size++;
+        }
+    }
+
+    // Return the code of the id, or -1 if it was never encoded
+    public int find(String id) {
+        Integer code = codes.get(id);
+        return code == null ? -1 : code;
+    }
+
+    public String decode(int code) {
+        return ids[code];
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    // Rough memory used by the dictionary, for memory caps of its users
+    public long estimatedBytes() {
+        return size() * (long) ENTRY_OVERHEAD_BYTES + 2 * idChars;
+    }
+}
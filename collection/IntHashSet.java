@@ -0,0 +1,88 @@
+package com.laioffer.jupiter.collection;
+
+import java.util.Arrays;
+
+// Set of non-negative ints with open addressing and linear probing, e.g. the IdDictionary codes of the favorite items of a user.
+// No boxing: contains() allocates nothing and the whole set is a single int array. Not thread safe.
+public class IntHashSet {
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int size;
+
+    public IntHashSet() {
+        this(8);
+    }
+
+    public IntHashSet(int expectedSize) {
+        slots = new int[tableSize(expectedSize)];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    // Smallest power of two keeping the load factor at or below 0.5
+    static int tableSize(int expectedSize) {
+        int tableSize = 8;
+        while (tableSize < expectedSize * 2) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    // Fibonacci hashing spreads consecutive codes over the table
+    static int slot(int value, int mask) {
+        int hash = value * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    // Return true if the value was added, false if it was already in the set
+    public boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        if ((size + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        int i = slot(value, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        size++;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int mask = slots.length - 1;
+        int i = slot(value, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int tableSize) {
+        int[] old = slots;
+        slots = new int[tableSize];
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+        for (int value : old) {
+            if (value != EMPTY) {
+                add(value);
+            }
+        }
+    }
+}
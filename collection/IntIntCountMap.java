@@ -0,0 +1,96 @@
+package com.laioffer.jupiter.collection;
+
+import java.util.Arrays;
+
+// Counts of non-negative int keys with open addressing, e.g. how many favorite items of a user belong to each game code.
+// Keys and counts live in two parallel int arrays, incrementing a count allocates nothing. Not thread safe.
+public class IntIntCountMap {
+    private static final int EMPTY = -1;
+
+    public interface Visitor {
+        void visit(int key, int count);
+    }
+
+    private int[] keys;
+    private int[] counts;
+    private int size;
+
+    public IntIntCountMap() {
+        this(8);
+    }
+
+    public IntIntCountMap(int expectedSize) {
+        int tableSize = IntHashSet.tableSize(expectedSize);
+        keys = new int[tableSize];
+        counts = new int[tableSize];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    // Add one to the count of the key and return the new count
+    public int increment(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = IntHashSet.slot(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            size++;
+        }
+        return ++counts[i];
+    }
+
+    // Return the count of the key, 0 if it was never incremented
+    public int get(int key) {
+        if (key < 0) {
+            return 0;
+        }
+        int mask = keys.length - 1;
+        int i = IntHashSet.slot(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return counts[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Visit every (key, count), in no particular order
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                visitor.visit(keys[i], counts[i]);
+            }
+        }
+    }
+
+    private void rehash(int tableSize) {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[tableSize];
+        counts = new int[tableSize];
+        Arrays.fill(keys, EMPTY);
+        int mask = tableSize - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = IntHashSet.slot(oldKeys[j], mask);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+}
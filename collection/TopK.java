@@ -0,0 +1,44 @@
+package com.laioffer.jupiter.collection;
+
+import java.util.Arrays;
+
+// Selects the k keys with the highest counts of an IntIntCountMap in one pass, without sorting all of them.
+// The k best keys so far are kept in order in two small arrays, so the cost is O(n * k) for the small k used by the recommendation.
+public class TopK {
+    public interface IntComparator {
+        int compare(int a, int b);
+    }
+
+    private TopK() {
+    }
+
+    // Return at most k keys, by count descending. Keys with the same count are ordered by tieBreak ascending.
+    public static int[] select(IntIntCountMap counts, int k, IntComparator tieBreak) {
+        int capacity = Math.max(0, Math.min(k, counts.size()));
+        int[] keys = new int[capacity];
+        int[] best = new int[capacity];
+        int[] size = new int[1];
+        if (capacity == 0) {
+            return keys;
+        }
+        counts.forEach((key, count) -> {
+            int n = size[0];
+            // Find where the key goes among the best keys so far, from the worst end
+            int position = n;
+            while (position > 0 && (count > best[position - 1]
+                    || count == best[position - 1] && tieBreak.compare(key, keys[position - 1]) < 0)) {
+                position--;
+            }
+            if (position == capacity) {
+                return;
+            }
+            int last = Math.min(n, capacity - 1);
+            System.arraycopy(keys, position, keys, position + 1, last - position);
+            System.arraycopy(best, position, best, position + 1, last - position);
+            keys[position] = key;
+            best[position] = count;
+            size[0] = Math.min(n + 1, capacity);
+        });
+        return Arrays.copyOf(keys, size[0]);
+    }
+}
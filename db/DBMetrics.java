@@ -0,0 +1,63 @@
+package com.laioffer.jupiter.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Latency counters of the database layer: how long requests wait for a pooled connection, and how long each statement takes.
+public class DBMetrics {
+    private static final DBMetrics INSTANCE = new DBMetrics();
+
+    private static class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        //e.g. {"count":120, "avgMicros":850, "maxMicros":12000}
+        Map<String, Long> toMap() {
+            long n = count.get();
+            Map<String, Long> result = new LinkedHashMap<>();
+            result.put("count", n);
+            result.put("avgMicros", n == 0 ? 0 : totalNanos.get() / n / 1000);
+            result.put("maxMicros", maxNanos.get() / 1000);
+            return result;
+        }
+    }
+
+    private final Timer connectionAcquire = new Timer();
+    private final ConcurrentHashMap<String, Timer> statements = new ConcurrentHashMap<>();
+
+    private DBMetrics() {
+    }
+
+    public static DBMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    void recordConnectionAcquire(long nanos) {
+        connectionAcquire.record(nanos);
+    }
+
+    void recordStatement(String name, long nanos) {
+        statements.computeIfAbsent(name, key -> new Timer()).record(nanos);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("connectionAcquire", connectionAcquire.toMap());
+        Map<String, Object> statementStats = new TreeMap<>();
+        for (Map.Entry<String, Timer> entry : statements.entrySet()) {
+            statementStats.put(entry.getKey(), entry.getValue().toMap());
+        }
+        stats.put("statements", statementStats);
+        return stats;
+    }
+}
@@ -0,0 +1,228 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.entity.Item;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Per-user cache of the favorite items, used by the favorite list and the recommendation instead of reading MySQL on every request.
+// - Entries expire TTL_MILLIS after they were loaded, and the least recently used users are evicted once the cache holds
+//   MAX_USERS users or its estimated size passes MAX_BYTES.
+// - The estimated size includes the id dictionary of the sets, see FavoriteSet.Dictionary, which only grows. Once it is
+//   twice as big as after the last compaction the cached sets are encoded again with a new dictionary of the live ids only.
+// - MySQLConnection applies every committed favorite change to the cached entry in place, so this node never serves a stale set.
+// - The change is published on the FavoriteInvalidationChannel, and other nodes drop their entry of the user.
+// - A load that overlaps with a change of the same user is returned to its caller but not cached.
+public class FavoriteCache {
+    private static final int MAX_USERS = Integer.getInteger("jupiter.favorite.cache.maxUsers", 10000);
+    private static final long MAX_BYTES = Long.getLong("jupiter.favorite.cache.maxBytes", 64L * 1024 * 1024);
+    private static final long TTL_MILLIS = Long.getLong("jupiter.favorite.cache.ttlMillis", 600_000);
+    //The dictionary is never compacted below this size
+    private static final long MIN_COMPACT_BYTES = MAX_BYTES / 8;
+
+    private static final FavoriteCache INSTANCE = new FavoriteCache(new InProcessInvalidationChannel());
+
+    private static class Entry {
+        private final FavoriteSet favorites;
+        private final long expiresAt;
+
+        Entry(FavoriteSet favorites, long expiresAt) {
+            this.favorites = favorites;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    //All fields below are guarded by this
+    //Access-ordered so the first entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //User id -> token of the load in progress, removed by a change of the user so the load is not cached
+    private final Map<String, Object> loads = new HashMap<>();
+    //Bytes of the cached sets, without the dictionary
+    private long totalBytes;
+    private FavoriteSet.Dictionary dictionary = new FavoriteSet.Dictionary();
+    private long compactAtBytes = MIN_COMPACT_BYTES;
+    private FavoriteInvalidationChannel channel;
+    private final List<FavoriteChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong remoteInvalidations = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    FavoriteCache(FavoriteInvalidationChannel channel) {
+        setInvalidationChannel(channel);
+    }
+
+    public static FavoriteCache getInstance() {
+        return INSTANCE;
+    }
+
+    //Replace the channel shared with the other nodes, e.g. with a message bus implementation when running several nodes
+    public synchronized void setInvalidationChannel(FavoriteInvalidationChannel channel) {
+        this.channel = channel;
+        channel.subscribe(this::invalidateRemote);
+    }
+
+    //Return the favorites of the user, loading them from the database on a miss
+    public FavoriteSet get(String userId) throws MySQLException {
+        Object token = new Object();
+        synchronized (this) {
+            Entry entry = entries.get(userId);
+            if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+                hits.incrementAndGet();
+                return entry.favorites;
+            }
+            misses.incrementAndGet();
+            loads.put(userId, token);
+        }
+        FavoriteSet favorites = load(userId);
+        synchronized (this) {
+            if (loads.remove(userId, token)) {
+                put(userId, new Entry(favorites, System.currentTimeMillis() + TTL_MILLIS));
+            }
+        }
+        return favorites;
+    }
+
+    private FavoriteSet load(String userId) throws MySQLException {
+        FavoriteSet.Dictionary current;
+        synchronized (this) {
+            current = dictionary;
+        }
+        Map<String, Item> items = new LinkedHashMap<>();
+        MySQLConnection connection = null;
+        try {
+            connection = new MySQLConnection();
+            connection.forEachFavoriteItem(userId, item -> items.put(item.getId(), item));
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        return new FavoriteSet(items, current);
+    }
+
+    //Register a listener of the favorite changes committed by this node
+    public void addChangeListener(FavoriteChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    //Called by MySQLConnection once the favorite was committed
+    void favoriteAdded(String userId, Item item) {
+        FavoriteInvalidationChannel publishTo;
+        synchronized (this) {
+            loads.remove(userId);
+            Entry entry = entries.get(userId);
+            if (entry != null) {
+                put(userId, new Entry(entry.favorites.with(item), entry.expiresAt));
+            }
+            publishTo = channel;
+        }
+        publishTo.publish(userId);
+        for (FavoriteChangeListener listener : listeners) {
+            try {
+                listener.favoriteAdded(userId, item);
+            } catch (RuntimeException e) {
+                //The change is committed, a failing listener must not fail the request
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //Called by MySQLConnection once the removal was committed
+    void favoriteRemoved(String userId, String itemId) {
+        FavoriteInvalidationChannel publishTo;
+        synchronized (this) {
+            loads.remove(userId);
+            Entry entry = entries.get(userId);
+            if (entry != null) {
+                put(userId, new Entry(entry.favorites.without(itemId), entry.expiresAt));
+            }
+            publishTo = channel;
+        }
+        publishTo.publish(userId);
+        for (FavoriteChangeListener listener : listeners) {
+            try {
+                listener.favoriteRemoved(userId, itemId);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //The favorites of the user were changed by another node
+    private synchronized void invalidateRemote(String userId) {
+        remoteInvalidations.incrementAndGet();
+        loads.remove(userId);
+        remove(userId);
+    }
+
+    //Must hold the lock
+    private void put(String userId, Entry entry) {
+        remove(userId);
+        //A set loaded or changed before the last compaction still uses the previous dictionary
+        entry = new Entry(entry.favorites.in(dictionary), entry.expiresAt);
+        entries.put(userId, entry);
+        totalBytes += entry.favorites.getEstimatedBytes();
+        if (dictionary.getEstimatedBytes() > compactAtBytes) {
+            compact();
+        }
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((entries.size() > MAX_USERS || totalBytes + dictionary.getEstimatedBytes() > MAX_BYTES) && entries.size() > 1) {
+            totalBytes -= eldest.next().favorites.getEstimatedBytes();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    //Encode the cached sets with a new dictionary, so the ids of evicted and removed items are forgotten. Must hold the lock.
+    //Sets already handed out keep the old dictionary until they are garbage collected.
+    private void compact() {
+        dictionary = new FavoriteSet.Dictionary();
+        for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+            Entry entry = cached.getValue();
+            //setValue does not change the access order
+            cached.setValue(new Entry(entry.favorites.in(dictionary), entry.expiresAt));
+        }
+        compactAtBytes = Math.max(MIN_COMPACT_BYTES, 2 * dictionary.getEstimatedBytes());
+        compactions.incrementAndGet();
+    }
+
+    //Must hold the lock
+    private void remove(String userId) {
+        Entry removed = entries.remove(userId);
+        if (removed != null) {
+            totalBytes -= removed.favorites.getEstimatedBytes();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        loads.clear();
+        totalBytes = 0;
+        dictionary = new FavoriteSet.Dictionary();
+        compactAtBytes = MIN_COMPACT_BYTES;
+    }
+
+    //e.g. {"size":800, "estimatedBytes":2600000, "dictionaryBytes":200000, "hits":9000, "misses":1000, "hitRate":0.9, "evictions":0,
+    //      "remoteInvalidations":3, "dictionaryCompactions":1}
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("size", entries.size());
+            stats.put("estimatedBytes", totalBytes + dictionary.getEstimatedBytes());
+            stats.put("dictionaryBytes", dictionary.getEstimatedBytes());
+        }
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hitCount / lookups);
+        stats.put("evictions", evictions.get());
+        stats.put("remoteInvalidations", remoteInvalidations.get());
+        stats.put("dictionaryCompactions", compactions.get());
+        return stats;
+    }
+}
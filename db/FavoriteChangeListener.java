@@ -0,0 +1,11 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.entity.Item;
+
+//Notified of every favorite change committed by this node, e.g. to keep data derived from favorite_records in sync without reading MySQL again.
+//Called on the committing thread after FavoriteCache was updated, so implementations must be quick.
+public interface FavoriteChangeListener {
+    void favoriteAdded(String userId, Item item);
+
+    void favoriteRemoved(String userId, String itemId);
+}
@@ -0,0 +1,39 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.entity.Item;
+
+//A favorite add or remove of one user, waiting in FavoriteWriteBehind to be written to the database.
+public class FavoriteEvent {
+    private final String userId;
+    private final Item item;
+    private final boolean favorite;
+    //Number of failed attempts to write this event, only used by the writer thread
+    int attempts;
+
+    private FavoriteEvent(String userId, Item item, boolean favorite) {
+        this.userId = userId;
+        this.item = item;
+        this.favorite = favorite;
+    }
+
+    public static FavoriteEvent set(String userId, Item item) {
+        return new FavoriteEvent(userId, item, true);
+    }
+
+    public static FavoriteEvent unset(String userId, Item item) {
+        return new FavoriteEvent(userId, item, false);
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Item getItem() {
+        return item;
+    }
+
+    //true for an add, false for a remove
+    public boolean isFavorite() {
+        return favorite;
+    }
+}
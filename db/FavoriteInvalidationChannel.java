@@ -0,0 +1,13 @@
+package com.laioffer.jupiter.db;
+
+import java.util.function.Consumer;
+
+//Tells the FavoriteCache of the other application nodes that the favorites of a user changed, so they drop their copy.
+//An implementation may use any message bus, e.g. Redis pub/sub, and must not deliver a node's own messages back to it.
+public interface FavoriteInvalidationChannel {
+    //Announce that the favorites of the user were changed on this node
+    void publish(String userId);
+
+    //Register the listener called with the user id of every change announced by another node
+    void subscribe(Consumer<String> listener);
+}
@@ -0,0 +1,121 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.collection.IdDictionary;
+import com.laioffer.jupiter.collection.IntHashSet;
+import com.laioffer.jupiter.collection.IntIntCountMap;
+import com.laioffer.jupiter.collection.TopK;
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.*;
+
+//Immutable favorite items of one user as kept by FavoriteCache. A change creates a new FavoriteSet,
+//so a set handed out to a request never changes underneath it.
+//Item and game ids are dictionary encoded when the set is built: the item codes are kept in an IntHashSet for containsItem,
+//and the favorite count of every game code per type in an IntIntCountMap, so the recommendation needs no boxing, hashing of strings or sorting.
+public class FavoriteSet {
+    //The codes of the item and game ids, shared by the sets of one FavoriteCache generation.
+    //They only grow, so FavoriteCache counts them in its memory cap and starts a new generation when they outgrow the cached sets.
+    static final class Dictionary {
+        private final IdDictionary itemIds = new IdDictionary();
+        private final IdDictionary gameIds = new IdDictionary();
+
+        long getEstimatedBytes() {
+            return itemIds.estimatedBytes() + gameIds.estimatedBytes();
+        }
+    }
+
+    //Rough per-item overhead of the map entry, the Item object and its string headers, used for the memory cap of FavoriteCache
+    private static final int ITEM_OVERHEAD_BYTES = 250;
+
+    private final Dictionary dictionary;
+    //Item id -> item, in the order the items were favorite
+    private final Map<String, Item> items;
+    private final IntHashSet itemCodes;
+    //Favorite count of each game code, indexed by ItemType ordinal
+    private final IntIntCountMap[] gameCounts = new IntIntCountMap[ItemType.values().length];
+    private final long estimatedBytes;
+
+    FavoriteSet(Map<String, Item> items, Dictionary dictionary) {
+        this.dictionary = dictionary;
+        this.items = items;
+        this.itemCodes = new IntHashSet(items.size());
+        for (int i = 0; i < gameCounts.length; i++) {
+            gameCounts[i] = new IntIntCountMap();
+        }
+        long bytes = 0;
+        for (Item item : items.values()) {
+            itemCodes.add(dictionary.itemIds.encode(item.getId()));
+            if (item.getGameId() != null && item.getType() != null) {
+                gameCounts[item.getType().ordinal()].increment(dictionary.gameIds.encode(item.getGameId()));
+            }
+            bytes += ITEM_OVERHEAD_BYTES + 2L * (length(item.getId()) + length(item.getTitle()) + length(item.getUrl())
+                    + length(item.getThumbnailUrl()) + length(item.getBroadcasterName()) + length(item.getGameId()));
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    FavoriteSet with(Item item) {
+        Map<String, Item> updated = new LinkedHashMap<>(items);
+        updated.put(item.getId(), item);
+        return new FavoriteSet(updated, dictionary);
+    }
+
+    FavoriteSet without(String itemId) {
+        if (!items.containsKey(itemId)) {
+            return this;
+        }
+        Map<String, Item> updated = new LinkedHashMap<>(items);
+        updated.remove(itemId);
+        return new FavoriteSet(updated, dictionary);
+    }
+
+    //The same favorites encoded with the given dictionary, e.g. the one of a new generation
+    FavoriteSet in(Dictionary target) {
+        return target == dictionary ? this : new FavoriteSet(items, target);
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public boolean containsItem(String itemId) {
+        return itemCodes.contains(dictionary.itemIds.find(itemId));
+    }
+
+    //The ids of the favorite items, in the order they were favorite. Read-only view.
+    public Set<String> getItemIds() {
+        return Collections.unmodifiableSet(items.keySet());
+    }
+
+    //By type name, e.g. {"VIDEO":[item1, item2], "STREAM":[], "CLIP":[item3]}.
+    //The map and its lists are new copies the caller may modify.
+    public Map<String, List<Item>> getItemMap() {
+        Map<String, List<Item>> itemMap = new HashMap<>();
+        for (ItemType type : ItemType.values()) {
+            itemMap.put(type.toString(), new ArrayList<>());
+        }
+        for (Item item : items.values()) {
+            if (item.getType() != null) {
+                itemMap.get(item.getType().toString()).add(item);
+            }
+        }
+        return itemMap;
+    }
+
+    //The ids of the gameLimit most favorite games of the type, ordered by count and then by game id.
+    //Empty when the user has no favorite of the type.
+    public List<String> getTopGameIds(ItemType type, int gameLimit) {
+        int[] topGames = TopK.select(gameCounts[type.ordinal()], gameLimit,
+                (a, b) -> dictionary.gameIds.decode(a).compareTo(dictionary.gameIds.decode(b)));
+        List<String> gameIds = new ArrayList<>(topGames.length);
+        for (int game : topGames) {
+            gameIds.add(dictionary.gameIds.decode(game));
+        }
+        return gameIds;
+    }
+}
@@ -0,0 +1,323 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.entity.Item;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Asynchronous write path of favorite adds and removes.
+// - Events wait in a bounded in-memory buffer, the request thread does not touch the database.
+// - Events of the same (user, item) are coalesced and the last one wins, e.g. an add followed by a remove is written as a single DELETE.
+// - A background writer flushes the buffer as JDBC batches in one transaction, once BATCH_SIZE events are waiting
+//   or the oldest waiting event is FLUSH_INTERVAL_MILLIS old.
+// - Events that are not written yet are returned by unflushedEvents(), so a user reads their own writes.
+// - When the buffer is full new events are rejected, and stop() writes everything that is left before the application exits.
+//Off by default: every event is then written on the request thread, and a failed write fails the request.
+//With -Djupiter.favorite.writeBehind.enabled=true a queued event is acknowledged before it is written (FavoriteServlet answers
+//202 Accepted), and it is lost when
+// - it failed MAX_ATTEMPTS times on its own, e.g. it breaks a constraint. A database that cannot be reached does not count as an attempt,
+// - the process dies before the writer wrote it, i.e. within about FLUSH_INTERVAL_MILLIS of the submit while the database is healthy,
+// - stop() could not write it within DRAIN_TIMEOUT_MILLIS.
+public class FavoriteWriteBehind {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jupiter.favorite.writeBehind.enabled", "false"));
+    private static final int MAX_PENDING = Integer.getInteger("jupiter.favorite.writeBehind.maxPending", 10000);
+    private static final int BATCH_SIZE = Integer.getInteger("jupiter.favorite.writeBehind.batchSize", 200);
+    private static final long FLUSH_INTERVAL_MILLIS = Long.getLong("jupiter.favorite.writeBehind.flushMillis", 200);
+    private static final long DRAIN_TIMEOUT_MILLIS = Long.getLong("jupiter.favorite.writeBehind.drainMillis", 10_000);
+    //An event that keeps failing is dropped after this many attempts, so it cannot block the events behind it
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final FavoriteWriteBehind INSTANCE = new FavoriteWriteBehind();
+
+    //All fields below are guarded by this. Events are keyed by user id, then item id
+    private final Map<String, LinkedHashMap<String, FavoriteEvent>> pendingByUser = new LinkedHashMap<>();
+    private final Map<String, Map<String, FavoriteEvent>> inFlightByUser = new HashMap<>();
+    private int pendingCount;
+    private long oldestPendingAt;
+    private Thread writer;
+    private boolean stopping;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong flushedEvents = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    //How submit() handled an event
+    public enum Outcome {
+        //Written to the database before submit() returned
+        WRITTEN,
+        //Queued, the writer writes it later
+        QUEUED,
+        //Not accepted because the buffer is full, the caller should retry later
+        REJECTED
+    }
+
+    private FavoriteWriteBehind() {
+    }
+
+    public static FavoriteWriteBehind getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void start() {
+        if (!ENABLED || writer != null) {
+            return;
+        }
+        stopping = false;
+        writer = new Thread(this::runWriter, "favorite-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //Stop accepting events and wait up to DRAIN_TIMEOUT_MILLIS for the writer to write the events that are left
+    public void stop() {
+        Thread stopped;
+        synchronized (this) {
+            if (writer == null) {
+                return;
+            }
+            stopping = true;
+            stopped = writer;
+            writer = null;
+            notifyAll();
+        }
+        try {
+            stopped.join(DRAIN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (pendingCount > 0) {
+                System.err.println("Lost " + pendingCount + " favorite events that were not written before shutdown");
+            }
+        }
+    }
+
+    //Queue the event, or reject it when the buffer is full.
+    //When the writer is not running, e.g. write-behind is disabled, the event is written on the caller's thread.
+    public Outcome submit(FavoriteEvent event) throws MySQLException {
+        synchronized (this) {
+            if (writer != null) {
+                LinkedHashMap<String, FavoriteEvent> userEvents = pendingByUser.get(event.getUserId());
+                boolean replaces = userEvents != null && userEvents.containsKey(event.getItem().getId());
+                if (!replaces && pendingCount >= MAX_PENDING) {
+                    rejected.incrementAndGet();
+                    return Outcome.REJECTED;
+                }
+                if (userEvents == null) {
+                    userEvents = new LinkedHashMap<>();
+                    pendingByUser.put(event.getUserId(), userEvents);
+                }
+                userEvents.put(event.getItem().getId(), event);
+                submitted.incrementAndGet();
+                if (replaces) {
+                    coalesced.incrementAndGet();
+                } else if (pendingCount++ == 0) {
+                    oldestPendingAt = System.currentTimeMillis();
+                }
+                //The writer waits without a timeout while nothing is pending, the first event starts its flush interval
+                if (pendingCount == 1 || pendingCount >= BATCH_SIZE) {
+                    notifyAll();
+                }
+                return Outcome.QUEUED;
+            }
+        }
+        write(Collections.singletonList(event));
+        return Outcome.WRITTEN;
+    }
+
+    //The events of the user that may not be visible in the database yet, by item id. Take them before reading the database,
+    //then apply them to what was read with overlay(), an event written in the meantime is then applied twice, which is harmless.
+    public synchronized Map<String, FavoriteEvent> unflushedEvents(String userId) {
+        Map<String, FavoriteEvent> events = new HashMap<>();
+        Map<String, FavoriteEvent> inFlight = inFlightByUser.get(userId);
+        if (inFlight != null) {
+            events.putAll(inFlight);
+        }
+        Map<String, FavoriteEvent> pending = pendingByUser.get(userId);
+        if (pending != null) {
+            events.putAll(pending);
+        }
+        return events;
+    }
+
+    //Apply the unflushed events to favorite items read from the database or FavoriteCache, see FavoriteSet.getItemMap
+    public static void overlay(Map<String, List<Item>> itemMap, Map<String, FavoriteEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (List<Item> items : itemMap.values()) {
+            items.removeIf(item -> events.containsKey(item.getId()));
+        }
+        for (FavoriteEvent event : events.values()) {
+            if (event.isFavorite() && event.getItem().getType() != null) {
+                itemMap.computeIfAbsent(event.getItem().getType().toString(), key -> new ArrayList<>()).add(event.getItem());
+            }
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            List<FavoriteEvent> batch;
+            synchronized (this) {
+                try {
+                    while (!stopping && pendingCount < BATCH_SIZE
+                            && (pendingCount == 0 || System.currentTimeMillis() < oldestPendingAt + FLUSH_INTERVAL_MILLIS)) {
+                        wait(pendingCount == 0 ? 0 : Math.max(1, oldestPendingAt + FLUSH_INTERVAL_MILLIS - System.currentTimeMillis()));
+                    }
+                } catch (InterruptedException e) {
+                    stopping = true;
+                }
+                if (pendingCount == 0) {
+                    if (stopping) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = takeBatch();
+            }
+            boolean written;
+            try {
+                written = flush(batch);
+            } catch (RuntimeException e) {
+                //The writer must not die, the events would never be written and the buffer would fill up
+                e.printStackTrace();
+                settle(batch, false, true);
+                written = false;
+            }
+            if (!written) {
+                //Give the database a moment before the retry
+                synchronized (this) {
+                    try {
+                        if (!stopping) {
+                            wait(FLUSH_INTERVAL_MILLIS);
+                        }
+                    } catch (InterruptedException e) {
+                        stopping = true;
+                    }
+                }
+            }
+        }
+    }
+
+    //Move up to BATCH_SIZE pending events to in-flight, oldest users first. Must hold the lock
+    private List<FavoriteEvent> takeBatch() {
+        List<FavoriteEvent> batch = new ArrayList<>();
+        Iterator<Map.Entry<String, LinkedHashMap<String, FavoriteEvent>>> users = pendingByUser.entrySet().iterator();
+        while (users.hasNext() && batch.size() < BATCH_SIZE) {
+            Map.Entry<String, LinkedHashMap<String, FavoriteEvent>> user = users.next();
+            Map<String, FavoriteEvent> inFlight = inFlightByUser.computeIfAbsent(user.getKey(), key -> new HashMap<>());
+            Iterator<FavoriteEvent> events = user.getValue().values().iterator();
+            while (events.hasNext() && batch.size() < BATCH_SIZE) {
+                FavoriteEvent event = events.next();
+                events.remove();
+                inFlight.put(event.getItem().getId(), event);
+                batch.add(event);
+            }
+            if (user.getValue().isEmpty()) {
+                users.remove();
+            }
+        }
+        pendingCount -= batch.size();
+        oldestPendingAt = System.currentTimeMillis();
+        return batch;
+    }
+
+    //Write the batch and remove it from in-flight. A batch that fails is split in halves that are written on their own, down to
+    //single events, so one bad event does not fail the events of other users. A single event goes back to pending after a failure,
+    //unless a newer event of the same (user, item) was submitted meanwhile or it has failed MAX_ATTEMPTS times.
+    //When the database cannot be reached the events go back to pending as they are, without counting an attempt.
+    private boolean flush(List<FavoriteEvent> batch) {
+        MySQLConnection connection;
+        try {
+            connection = new MySQLConnection();
+        } catch (MySQLException e) {
+            failedBatches.incrementAndGet();
+            settle(batch, false, false);
+            return false;
+        }
+        boolean written;
+        try {
+            connection.applyFavoriteEvents(batch);
+            written = true;
+        } catch (RuntimeException e) {
+            //e.g. MySQLException, or a NullPointerException for an item without type
+            e.printStackTrace();
+            written = false;
+        } finally {
+            connection.close();
+        }
+        if (written) {
+            flushedBatches.incrementAndGet();
+            flushedEvents.addAndGet(batch.size());
+            settle(batch, true, false);
+            return true;
+        }
+        failedBatches.incrementAndGet();
+        if (batch.size() == 1) {
+            settle(batch, false, true);
+            return false;
+        }
+        int middle = batch.size() / 2;
+        boolean firstWritten = flush(batch.subList(0, middle));
+        boolean secondWritten = flush(batch.subList(middle, batch.size()));
+        return firstWritten && secondWritten;
+    }
+
+    //Remove the events from in-flight, and put the ones that were not written back to pending. Events that are not in-flight any more are skipped
+    private synchronized void settle(List<FavoriteEvent> events, boolean written, boolean countAttempt) {
+        for (FavoriteEvent event : events) {
+            Map<String, FavoriteEvent> inFlight = inFlightByUser.get(event.getUserId());
+            if (inFlight == null || !inFlight.remove(event.getItem().getId(), event)) {
+                //Already settled
+                continue;
+            }
+            if (inFlight.isEmpty()) {
+                inFlightByUser.remove(event.getUserId());
+            }
+            if (written) {
+                continue;
+            }
+            if (countAttempt && ++event.attempts >= MAX_ATTEMPTS) {
+                System.err.println("Dropped favorite event of user " + event.getUserId() + " on item " + event.getItem().getId());
+                droppedEvents.incrementAndGet();
+                continue;
+            }
+            LinkedHashMap<String, FavoriteEvent> userEvents = pendingByUser.computeIfAbsent(event.getUserId(), key -> new LinkedHashMap<>());
+            if (userEvents.putIfAbsent(event.getItem().getId(), event) == null && pendingCount++ == 0) {
+                oldestPendingAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void write(List<FavoriteEvent> events) throws MySQLException {
+        MySQLConnection connection = null;
+        try {
+            connection = new MySQLConnection();
+            connection.applyFavoriteEvents(events);
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    //Counters for monitoring, e.g. {"pending":12, "submitted":5000, "coalesced":40, "rejected":0, "flushedBatches":80, ...}
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("pending", (long) pendingCount);
+        }
+        stats.put("submitted", submitted.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("rejected", rejected.get());
+        stats.put("flushedBatches", flushedBatches.get());
+        stats.put("flushedEvents", flushedEvents.get());
+        stats.put("failedBatches", failedBatches.get());
+        stats.put("droppedEvents", droppedEvents.get());
+        return stats;
+    }
+}
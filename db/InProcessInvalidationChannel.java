@@ -0,0 +1,42 @@
+package com.laioffer.jupiter.db;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+//FavoriteInvalidationChannel inside a single JVM. Every channel created by connect() acts as another node on the same bus,
+//which lets several FavoriteCache instances be wired together in tests. A channel that is never connected is a single node bus.
+public class InProcessInvalidationChannel implements FavoriteInvalidationChannel {
+    private final List<InProcessInvalidationChannel> bus;
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    public InProcessInvalidationChannel() {
+        this(new CopyOnWriteArrayList<>());
+    }
+
+    private InProcessInvalidationChannel(List<InProcessInvalidationChannel> bus) {
+        this.bus = bus;
+        bus.add(this);
+    }
+
+    //Return a channel of another node on the same bus
+    public InProcessInvalidationChannel connect() {
+        return new InProcessInvalidationChannel(bus);
+    }
+
+    @Override
+    public void publish(String userId) {
+        for (InProcessInvalidationChannel node : bus) {
+            if (node != this) {
+                for (Consumer<String> listener : node.listeners) {
+                    listener.accept(userId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+}
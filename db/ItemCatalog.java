@@ -0,0 +1,112 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.entity.Item;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Remembers which items were recently written to the items table, and with which content, so saving the same popular clip
+//for thousands of users costs one write. Only items that are new or changed since their last save reach the database,
+//see MySQLConnection.saveItems. An item is remembered once the transaction that saved it has committed.
+public class ItemCatalog {
+    private static final int MAX_RECENT_ITEMS = Integer.getInteger("jupiter.itemCatalog.recentItems", 50000);
+    //Upper bounds of the batch size histogram buckets, the last bucket holds everything bigger
+    private static final int[] BATCH_SIZE_BUCKETS = {1, 10, 50, 100};
+
+    private static final ItemCatalog INSTANCE = new ItemCatalog();
+
+    //Item id -> fingerprint of the saved content, access-ordered so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Long> recentItems = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT_ITEMS;
+        }
+    };
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLongArray batchSizes = new AtomicLongArray(BATCH_SIZE_BUCKETS.length + 1);
+
+    private ItemCatalog() {
+    }
+
+    public static ItemCatalog getInstance() {
+        return INSTANCE;
+    }
+
+    //Return the items that have to be written: one per id, the last one wins, and none that was saved recently with the same content
+    List<Item> unsaved(Collection<Item> items) {
+        Map<String, Item> byId = new LinkedHashMap<>();
+        for (Item item : items) {
+            byId.put(item.getId(), item);
+        }
+        List<Item> unsaved = new ArrayList<>();
+        synchronized (recentItems) {
+            for (Item item : byId.values()) {
+                Long fingerprint = recentItems.get(item.getId());
+                if (fingerprint == null || fingerprint != fingerprint(item)) {
+                    unsaved.add(item);
+                }
+            }
+        }
+        requested.addAndGet(items.size());
+        skipped.addAndGet(items.size() - unsaved.size());
+        return unsaved;
+    }
+
+    //Remember the items as saved, call it after the transaction that wrote them has committed
+    void markSaved(Collection<Item> items) {
+        synchronized (recentItems) {
+            for (Item item : items) {
+                recentItems.put(item.getId(), fingerprint(item));
+            }
+        }
+    }
+
+    void recordBatch(int rows) {
+        int bucket = 0;
+        while (bucket < BATCH_SIZE_BUCKETS.length && rows > BATCH_SIZE_BUCKETS[bucket]) {
+            bucket++;
+        }
+        batchSizes.incrementAndGet(bucket);
+    }
+
+    public void clear() {
+        synchronized (recentItems) {
+            recentItems.clear();
+        }
+    }
+
+    //64-bit hash of the stored columns, a fingerprint collision only delays a metadata refresh until the item is evicted
+    private static long fingerprint(Item item) {
+        long hash = 1125899906842597L;
+        for (String column : new String[]{item.getTitle(), item.getUrl(), item.getThumbnailUrl(), item.getBroadcasterName(),
+                item.getGameId(), String.valueOf(item.getType())}) {
+            hash = 31 * hash + (column == null ? 0 : column.hashCode());
+            hash = 31 * hash + (column == null ? 0 : column.length());
+        }
+        return hash;
+    }
+
+    //e.g. {"size":3000, "requested":5000, "skipped":4200, "skipRatio":0.84, "batchSizes":{"1":300, "2-10":40, ...}}
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (recentItems) {
+            stats.put("size", recentItems.size());
+        }
+        long requestedCount = requested.get();
+        stats.put("requested", requestedCount);
+        stats.put("skipped", skipped.get());
+        stats.put("skipRatio", requestedCount == 0 ? 0.0 : (double) skipped.get() / requestedCount);
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        int lower = 1;
+        for (int i = 0; i < BATCH_SIZE_BUCKETS.length; i++) {
+            int upper = BATCH_SIZE_BUCKETS[i];
+            histogram.put(lower == upper ? String.valueOf(upper) : lower + "-" + upper, batchSizes.get(i));
+            lower = upper + 1;
+        }
+        histogram.put(lower + "+", batchSizes.get(BATCH_SIZE_BUCKETS.length));
+        stats.put("batchSizes", histogram);
+        return stats;
+    }
+}
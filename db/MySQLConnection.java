@@ -5,31 +5,57 @@ import com.laioffer.jupiter.entity.Item;
 import com.laioffer.jupiter.entity.ItemType;
 import com.laioffer.jupiter.entity.User;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.sql.DataSource;
 import java.sql.*;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 
 public class MySQLConnection {
+    //Rows per multi-row item upsert, bigger saves are split
+    private static final int ITEM_UPSERT_CHUNK_SIZE = 100;
+    //Metadata of an existing item is refreshed, but a column is never overwritten with null. MySQL skips the write
+    //of rows whose columns did not change, so an unchanged item costs no row update.
+    private static final String ITEM_UPSERT_COLUMNS = "INSERT INTO items (id, title, url, thumbnail_url, broadcaster_name, game_id, type) VALUES ";
+    private static final String ITEM_UPSERT_ROW = "(?, ?, ?, ?, ?, ?, ?)";
+    private static final String ITEM_UPSERT_UPDATE = " ON DUPLICATE KEY UPDATE " +
+            "title = COALESCE(VALUES(title), title), " +
+            "url = COALESCE(VALUES(url), url), " +
+            "thumbnail_url = COALESCE(VALUES(thumbnail_url), thumbnail_url), " +
+            "broadcaster_name = COALESCE(VALUES(broadcaster_name), broadcaster_name)";
     //create a connection to the MySQL database
     private final Connection conn;
+    //Statements of the SqlStatement catalog prepared on this connection so far, they are reused until close()
+    private final Map<SqlStatement, PreparedStatement> statements = new EnumMap<>(SqlStatement.class);
+    //Item upserts prepared on this connection, by number of rows
+    private final Map<Integer, PreparedStatement> itemUpsertStatements = new HashMap<>();
+    //Actions to run once the open transaction has committed, see onCommit
+    private final List<Runnable> afterCommit = new ArrayList<>();
 
     public MySQLConnection() throws MySQLException {
         try {
 //            Class.forName("com.mysql.cj.jdbc.Driver").newInstance();
 //            conn = DriverManager.getConnection(MySQLDBUtil.getMySQLAddress());
-            Context context = new InitialContext();
-            DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/jupiterDB");
-            conn = dataSource.getConnection();
+            conn = MySQLDataSource.getConnection();
         } catch (Exception e) {
             e.printStackTrace();
             throw new MySQLException("Failed to connect to database");
         }
     }
 
+    //Close the cached statements first, then return the connection to the pool
     public void close() {
+        List<PreparedStatement> prepared = new ArrayList<>(statements.values());
+        prepared.addAll(itemUpsertStatements.values());
+        for (PreparedStatement statement : prepared) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        statements.clear();
+        itemUpsertStatements.clear();
         if (conn != null) {
             try {
                 conn.close();
@@ -38,27 +64,145 @@ public class MySQLConnection {
             }
         }
     }
-    //Verify if the given user Id and password are correct. Returns the user name when it passes
-    public String verifyLogin(String userId, String password) throws MySQLException {
+    //Run the work in one transaction on this connection, so its statements cost a single commit.
+    //Everything is rolled back if the work fails. Nested calls join the transaction that is already open.
+    public <T> T inTransaction(UnitOfWork<T> work) throws MySQLException {
         if (conn == null) {
             System.err.println("DB connection failed");
             throw new MySQLException("Failed to connect to database");
         }
-        String name = "";
-        String sql = "SELECT first_name, last_name FROM users WHERE id = ? AND password = ?";
         try {
-            PreparedStatement statement = conn.prepareStatement(sql);
+            if (!conn.getAutoCommit()) {
+                return work.run(this);
+            }
+            conn.setAutoCommit(false);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new MySQLException("Failed to start database transaction");
+        }
+        boolean committed = false;
+        try {
+            T result = work.run(this);
+            long start = System.nanoTime();
+            conn.commit();
+            DBMetrics.getInstance().recordStatement("commit", System.nanoTime() - start);
+            committed = true;
+            return result;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new MySQLException("Failed to commit database transaction");
+        } finally {
+            try {
+                if (!committed) {
+                    conn.rollback();
+                }
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            List<Runnable> actions = new ArrayList<>(afterCommit);
+            afterCommit.clear();
+            if (committed) {
+                actions.forEach(Runnable::run);
+            }
+        }
+    }
+
+    //Run the action once the writes done so far are committed: right away outside a transaction,
+    //after the commit inside one, and never if the transaction is rolled back.
+    private void onCommit(Runnable action) throws SQLException {
+        if (conn.getAutoCommit()) {
+            action.run();
+        } else {
+            afterCommit.add(action);
+        }
+    }
+
+    //Return the prepared statement of the catalog entry, preparing it on the first use on this connection.
+    //Callers set every parameter before executing it and close the ResultSet they get, but never close the statement itself.
+    private PreparedStatement prepare(SqlStatement sqlStatement) throws SQLException {
+        PreparedStatement statement = statements.get(sqlStatement);
+        if (statement == null) {
+            statement = conn.prepareStatement(sqlStatement.getSql());
+            statements.put(sqlStatement, statement);
+        }
+        return statement;
+    }
+
+    private ResultSet executeQuery(SqlStatement sqlStatement, PreparedStatement statement) throws SQLException {
+        return executeQuery(sqlStatement.getMetricName(), statement);
+    }
+
+    private int executeUpdate(SqlStatement sqlStatement, PreparedStatement statement) throws SQLException {
+        return executeUpdate(sqlStatement.getMetricName(), statement);
+    }
+
+    //Execute the statement and record its latency under the given name in DBMetrics
+    private ResultSet executeQuery(String name, PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeQuery();
+        } finally {
+            DBMetrics.getInstance().recordStatement(name, System.nanoTime() - start);
+        }
+    }
+
+    private int executeUpdate(String name, PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        } finally {
+            DBMetrics.getInstance().recordStatement(name, System.nanoTime() - start);
+        }
+    }
+
+    //Execute the batch of a catalog statement, its latency is recorded as e.g. "saveItemBatch"
+    private int[] executeBatch(SqlStatement sqlStatement, PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeBatch();
+        } finally {
+            DBMetrics.getInstance().recordStatement(sqlStatement.getMetricName() + "Batch", System.nanoTime() - start);
+        }
+    }
+
+    //Return the stored password hash and the name of the user, or null if there is no such user
+    public UserCredentials getCredentials(String userId) throws MySQLException {
+        if (conn == null) {
+            System.err.println("DB connection failed");
+            throw new MySQLException("Failed to connect to database");
+        }
+        try {
+            PreparedStatement statement = prepare(SqlStatement.GET_CREDENTIALS);
             statement.setString(1, userId);
-            statement.setString(2, password);
-            ResultSet rs = statement.executeQuery();
-            if (rs.next()) {
-                name = rs.getString("first_name") + " " + rs.getString("last_name");
+            try (ResultSet rs = executeQuery(SqlStatement.GET_CREDENTIALS, statement)) {
+                if (rs.next()) {
+                    return new UserCredentials(rs.getString("password"), rs.getString("first_name"), rs.getString("last_name"));
+                }
+                return null;
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new MySQLException("Failed to verify user id and password from database");
+            throw new MySQLException("Failed to get user credentials from database");
+        }
+    }
+
+    //Replace the stored password hash, only if it is still the expected one. Returns false if it was changed meanwhile
+    public boolean updatePassword(String userId, String expectedHash, String newHash) throws MySQLException {
+        if (conn == null) {
+            System.err.println("DB connection failed");
+            throw new MySQLException("Failed to connect to database");
+        }
+        try {
+            PreparedStatement statement = prepare(SqlStatement.UPDATE_PASSWORD);
+            statement.setString(1, newHash);
+            statement.setString(2, userId);
+            statement.setString(3, expectedHash);
+            return executeUpdate(SqlStatement.UPDATE_PASSWORD, statement) == 1;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new MySQLException("Failed to update user password in database");
         }
-        return name;
     }
 
     //Add a new user to the database
@@ -67,14 +211,13 @@ public class MySQLConnection {
             System.err.println("DB connection failed");
             throw new MySQLException("Failed to connect to database");
         }
-        String sql = "INSERT IGNORE INTO users VALUES (?, ?, ?, ?)";
         try {
-            PreparedStatement statement = conn.prepareStatement(sql);
+            PreparedStatement statement = prepare(SqlStatement.ADD_USER);
             statement.setString(1, user.getUserId());
             statement.setString(2, user.getPassword());
             statement.setString(3, user.getFirstName());
             statement.setString(4, user.getLastName());
-            return statement.executeUpdate() == 1;
+            return executeUpdate(SqlStatement.ADD_USER, statement) == 1;
         } catch (SQLException e) {
             e.printStackTrace();
             throw new MySQLException("Failed to add user information to database");
@@ -90,18 +233,79 @@ public class MySQLConnection {
         //user应该已经在database了
         //item如果不在database，需要先保存
         //Need to make sure item is added to the items table first because the foreign key restriction on item_id(favorite_records)->id(items)
-        saveItem(item);
-        //Using ? and preparedStatement to prevent SQL injection
-        String sql = "INSERT IGNORE INTO favorite_records (user_id, item_id) VALUES (?,?)";
-        try {
-            PreparedStatement statement = conn.prepareStatement(sql);
-            statement.setString(1, userId);
-            statement.setString(2, item.getId());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new MySQLException("Failed to save favorite item to database");
+        //Both inserts run in one transaction, so a favorite costs a single commit
+        inTransaction(connection -> {
+            saveItem(item);
+            //Using ? and preparedStatement to prevent SQL injection
+            try {
+                PreparedStatement statement = prepare(SqlStatement.SET_FAVORITE_ITEM);
+                statement.setString(1, userId);
+                statement.setString(2, item.getId());
+                executeUpdate(SqlStatement.SET_FAVORITE_ITEM, statement);
+                onCommit(() -> FavoriteCache.getInstance().favoriteAdded(userId, item));
+            } catch (SQLException e) {
+                e.printStackTrace();
+                throw new MySQLException("Failed to save favorite item to database");
+            }
+            return null;
+        });
+    }
+
+    //Write a batch of favorite adds and removes in one transaction, using one JDBC batch per statement.
+    //There must be at most one event per (user, item) in the batch, so the order of the statements does not matter,
+    //except that the items are saved, see saveItems, before the favorite records referencing them.
+    public void applyFavoriteEvents(Collection<FavoriteEvent> events) throws MySQLException {
+        if (conn == null) {
+            System.err.println("DB connection failed");
+            throw new MySQLException("Failed to connect to database");
         }
+        inTransaction(connection -> {
+            try {
+                List<Item> items = new ArrayList<>();
+                for (FavoriteEvent event : events) {
+                    if (event.isFavorite()) {
+                        items.add(event.getItem());
+                    }
+                }
+                saveItems(items);
+                PreparedStatement setFavorite = prepare(SqlStatement.SET_FAVORITE_ITEM);
+                PreparedStatement unsetFavorite = prepare(SqlStatement.UNSET_FAVORITE_ITEM);
+                int adds = 0;
+                int removes = 0;
+                for (FavoriteEvent event : events) {
+                    if (event.isFavorite()) {
+                        setFavorite.setString(1, event.getUserId());
+                        setFavorite.setString(2, event.getItem().getId());
+                        setFavorite.addBatch();
+                        adds++;
+                    } else {
+                        unsetFavorite.setString(1, event.getUserId());
+                        unsetFavorite.setString(2, event.getItem().getId());
+                        unsetFavorite.addBatch();
+                        removes++;
+                    }
+                }
+                if (adds > 0) {
+                    executeBatch(SqlStatement.SET_FAVORITE_ITEM, setFavorite);
+                }
+                if (removes > 0) {
+                    executeBatch(SqlStatement.UNSET_FAVORITE_ITEM, unsetFavorite);
+                }
+                //Keep the cached favorites of the users in sync once the batch is committed
+                FavoriteCache cache = FavoriteCache.getInstance();
+                for (FavoriteEvent event : events) {
+                    if (event.isFavorite()) {
+                        onCommit(() -> cache.favoriteAdded(event.getUserId(), event.getItem()));
+                    } else {
+                        onCommit(() -> cache.favoriteRemoved(event.getUserId(), event.getItem().getId()));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                throw new MySQLException("Failed to write favorite items to database");
+            }
+            return null;
+        });
     }
 
     //Remove a favorite record from favorite_records table
@@ -113,124 +317,118 @@ public class MySQLConnection {
         //check and maybe delete
         //需要考虑从item table里删掉没有任何人 favorite 的item
         //可以一段时间offline做garbage collection
-        String sql = "DELETE FROM favorite_records WHERE user_id = ? AND item_id = ?";
         try{
-            PreparedStatement statement = conn.prepareStatement(sql);
+            PreparedStatement statement = prepare(SqlStatement.UNSET_FAVORITE_ITEM);
             statement.setString(1,userId);
             statement.setString(2, itemId);
-            statement.executeUpdate();
+            executeUpdate(SqlStatement.UNSET_FAVORITE_ITEM, statement);
+            onCommit(() -> FavoriteCache.getInstance().favoriteRemoved(userId, itemId));
         } catch (SQLException e) {
             e.printStackTrace();
             throw new MySQLException("Failed to delete favorite item from database");
         }
     }
-    //Insert an item to the items table
+    //Insert an item to the items table, or refresh its metadata if it is already there
     public void saveItem(Item item) throws MySQLException{
-        if (conn == null) {
-            System.err.println("DB connection failed");
-            throw new MySQLException("Failed to connect to database");
-        }
-        String sql = "INSERT IGNORE INTO items VALUES (?, ?, ?, ?, ?, ?, ?)";
-        try{
-            PreparedStatement statement = conn.prepareStatement(sql);
-            statement.setString(1, item.getId());
-            statement.setString(2, item.getTitle());
-            statement.setString(3, item.getUrl());
-            statement.setString(4, item.getThumbnailUrl());
-            statement.setString(5, item.getBroadcasterName());
-            statement.setString(6, item.getGameId());
-            statement.setString(7, item.getType().toString());
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new MySQLException("Failed to add item to items table");
-        }
+        saveItems(Collections.singletonList(item));
     }
-    //Get favorite item ids for the given user
-    public Set<String> getFavoriteItemIds(String userId) throws MySQLException {
+
+    //Upsert the items with multi-row INSERT ... ON DUPLICATE KEY UPDATE statements. Items that ItemCatalog saw saved recently
+    //with the same content are skipped, so a popular item favorite by many users is not written again and again.
+    public void saveItems(Collection<Item> items) throws MySQLException {
         if (conn == null) {
             System.err.println("DB connection failed");
             throw new MySQLException("Failed to connect to database");
         }
-        Set<String> favoriteItemIds = new HashSet<>();
-        String sql = "SELECT item_id FROM favorite_records WHERE user_id = ?";
+        ItemCatalog catalog = ItemCatalog.getInstance();
+        List<Item> unsaved = catalog.unsaved(items);
         try {
-            PreparedStatement statement = conn.prepareStatement(sql);
-            statement.setString(1, userId);
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                String itemId = rs.getString("item_id");
-                favoriteItemIds.add(itemId);
+            for (int start = 0; start < unsaved.size(); start += ITEM_UPSERT_CHUNK_SIZE) {
+                List<Item> chunk = unsaved.subList(start, Math.min(start + ITEM_UPSERT_CHUNK_SIZE, unsaved.size()));
+                PreparedStatement statement = itemUpsertStatements.get(chunk.size());
+                if (statement == null) {
+                    String sql = ITEM_UPSERT_COLUMNS + String.join(", ", Collections.nCopies(chunk.size(), ITEM_UPSERT_ROW)) + ITEM_UPSERT_UPDATE;
+                    statement = conn.prepareStatement(sql);
+                    itemUpsertStatements.put(chunk.size(), statement);
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    bindItem(statement, i * 7, chunk.get(i));
+                }
+                executeUpdate("saveItem", statement);
+                catalog.recordBatch(chunk.size());
+            }
+            if (!unsaved.isEmpty()) {
+                onCommit(() -> catalog.markSaved(unsaved));
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new MySQLException("Failed to get favorite item ids from database");
+            throw new MySQLException("Failed to add item to items table");
         }
-        return favoriteItemIds;
     }
-    //Get favorite items for the given user. The returned map includes three entries
-    // like {"Video":[item1, item2, item3], "Stream":[item4, item5, item6], "Clip":[item7, item8, item9]}
-    public Map<String, List<Item>> getFavoriteItems(String userId) throws MySQLException {
+    //Pass every favorite item of the given user to the consumer, using a single join of favorite_records and items.
+    //Rows are streamed from the server one at a time instead of being loaded all at once, so a consumer that does not keep the items
+    //can go through a very large favorite set with bounded memory.
+    public void forEachFavoriteItem(String userId, Consumer<Item> consumer) throws MySQLException {
         if (conn == null) {
             System.err.println("DB connection failed");
             throw new MySQLException("Failed to connect to database");
         }
-        Map<String, List<Item>> itemMap = new HashMap<>();
-        for (ItemType type : ItemType.values()) {
-            itemMap.put(type.toString(), new ArrayList<>());
-        }
-        Set<String> favoriteItemIds = getFavoriteItemIds(userId);
-        String sql = "SELECT * FROM items WHERE id = ?";
         try {
-            PreparedStatement statement = conn.prepareStatement(sql);
-            for (String itemId : favoriteItemIds) {
-                statement.setString(1, itemId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {//最多返回一个，所以可以用if
-                    ItemType itemType = ItemType.valueOf(rs.getString("type"));
-                    Item item = new Item.Builder()
-                            .setId(rs.getString("id"))
-                            .setTitle(rs.getString("title"))
-                            .setUrl(rs.getString("url"))
-                            .setThumbnailUrl(rs.getString("thumbnail_url"))
-                            .setBroadcasterName(rs.getString("broadcaster_name"))
-                            .setGameId(rs.getString("game_id"))
-                            .setType(itemType).build();
-                    itemMap.get(itemType.toString()).add(item);
+            //Catalog statements are forward only and read only. Integer.MIN_VALUE tells the MySQL driver to stream the result set row by row
+            PreparedStatement statement = prepare(SqlStatement.GET_FAVORITE_ITEMS);
+            statement.setFetchSize(Integer.MIN_VALUE);
+            statement.setString(1, userId);
+            try (ResultSet rs = executeQuery(SqlStatement.GET_FAVORITE_ITEMS, statement)) {
+                while (rs.next()) {
+                    consumer.accept(itemFromResultSet(rs));
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
             throw new MySQLException("Failed to get favorite items from database");
         }
-        return itemMap;
     }
-    //Get favorite game ids for the given user. The returned map includes three entries like
-    //{"Video":["1234", "5678", ...], "Streams":["abcd","efgh",...], "Clips":["4321", "5675"...]
-    public Map<String, List<String>> getFavoriteGameIds(Set<String> favoriteItemIds) throws MySQLException {
+
+    //Pass every favorite record of every user to the consumer with its item, e.g. to build the co-occurrence recommender.
+    //Streamed row by row like forEachFavoriteItem, the records of a user are not necessarily consecutive.
+    public void forEachFavoriteRecord(BiConsumer<String, Item> consumer) throws MySQLException {
         if (conn == null) {
             System.err.println("DB connection failed");
             throw new MySQLException("Failed to connect to database");
         }
-        Map<String, List<String>> itemMap = new HashMap<>();
-        for (ItemType type : ItemType.values()) {
-            itemMap.put(type.toString(), new ArrayList<>());
-        }
-        String sql = "SELECT game_id, type FROM items WHERE id = ?";
         try {
-            PreparedStatement statement = conn.prepareStatement(sql);
-            for (String itemId : favoriteItemIds) {
-                statement.setString(1, itemId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    itemMap.get(rs.getString("type")).add(rs.getString("game_id"));
+            PreparedStatement statement = prepare(SqlStatement.GET_ALL_FAVORITE_ITEMS);
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = executeQuery(SqlStatement.GET_ALL_FAVORITE_ITEMS, statement)) {
+                while (rs.next()) {
+                    consumer.accept(rs.getString("user_id"), itemFromResultSet(rs));
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw  new MySQLException("Failed to get favorite game ids from database");
+            throw new MySQLException("Failed to get favorite records from database");
         }
-        return itemMap;
     }
 
+    //Set the 7 columns of the items table, in the order of the table definition, after the first `offset` parameters
+    private void bindItem(PreparedStatement statement, int offset, Item item) throws SQLException {
+        statement.setString(offset + 1, item.getId());
+        statement.setString(offset + 2, item.getTitle());
+        statement.setString(offset + 3, item.getUrl());
+        statement.setString(offset + 4, item.getThumbnailUrl());
+        statement.setString(offset + 5, item.getBroadcasterName());
+        statement.setString(offset + 6, item.getGameId());
+        statement.setString(offset + 7, item.getType().toString());
+    }
+
+    private Item itemFromResultSet(ResultSet rs) throws SQLException {
+        return new Item.Builder()
+                .setId(rs.getString("id"))
+                .setTitle(rs.getString("title"))
+                .setUrl(rs.getString("url"))
+                .setThumbnailUrl(rs.getString("thumbnail_url"))
+                .setBroadcasterName(rs.getString("broadcaster_name"))
+                .setGameId(rs.getString("game_id"))
+                .setType(ItemType.valueOf(rs.getString("type"))).build();
+    }
 }
\ No newline at end of file
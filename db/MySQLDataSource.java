@@ -0,0 +1,45 @@
+package com.laioffer.jupiter.db;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+//Looks up the container managed connection pool once and hands out connections from it.
+//The JNDI lookup used to be repeated for every MySQLConnection, i.e. for every request.
+public class MySQLDataSource {
+    private static final String JNDI_NAME = "java:comp/env/jdbc/jupiterDB";
+
+    private static volatile DataSource dataSource;
+
+    private MySQLDataSource() {
+    }
+
+    private static DataSource get() throws NamingException {
+        DataSource result = dataSource;
+        if (result == null) {
+            synchronized (MySQLDataSource.class) {
+                result = dataSource;
+                if (result == null) {
+                    Context context = new InitialContext();
+                    result = (DataSource) context.lookup(JNDI_NAME);
+                    dataSource = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    //Borrow a connection from the pool, the time spent waiting for it is recorded in DBMetrics
+    public static Connection getConnection() throws NamingException, SQLException {
+        DataSource source = get();
+        long start = System.nanoTime();
+        try {
+            return source.getConnection();
+        } finally {
+            DBMetrics.getInstance().recordConnectionAcquire(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.laioffer.jupiter.db;
+
+//The fixed catalog of SQL run by MySQLConnection. Each statement is prepared at most once per connection and reused,
+//its metricName is the name its latency is recorded under in DBMetrics.
+//Queries with a variable number of parameters, e.g. the multi-row item upsert of saveItems, are not part of the catalog.
+enum SqlStatement {
+    ADD_USER("addUser",
+            "INSERT IGNORE INTO users VALUES (?, ?, ?, ?)"),
+    GET_CREDENTIALS("getCredentials",
+            "SELECT password, first_name, last_name FROM users WHERE id = ?"),
+    UPDATE_PASSWORD("updatePassword",
+            "UPDATE users SET password = ? WHERE id = ? AND password = ?"),
+    SET_FAVORITE_ITEM("setFavoriteItem",
+            "INSERT IGNORE INTO favorite_records (user_id, item_id) VALUES (?,?)"),
+    UNSET_FAVORITE_ITEM("unsetFavoriteItem",
+            "DELETE FROM favorite_records WHERE user_id = ? AND item_id = ?"),
+    GET_FAVORITE_ITEMS("getFavoriteItems",
+            "SELECT items.* FROM favorite_records JOIN items ON favorite_records.item_id = items.id WHERE favorite_records.user_id = ?"),
+    GET_ALL_FAVORITE_ITEMS("getAllFavoriteItems",
+            "SELECT favorite_records.user_id, items.* FROM favorite_records JOIN items ON favorite_records.item_id = items.id");
+
+    private final String metricName;
+    private final String sql;
+
+    SqlStatement(String metricName, String sql) {
+        this.metricName = metricName;
+        this.sql = sql;
+    }
+
+    String getMetricName() {
+        return metricName;
+    }
+
+    String getSql() {
+        return sql;
+    }
+}
@@ -0,0 +1,7 @@
+package com.laioffer.jupiter.db;
+
+//A group of statements that must be committed together, see MySQLConnection.inTransaction
+@FunctionalInterface
+public interface UnitOfWork<T> {
+    T run(MySQLConnection connection) throws MySQLException;
+}
@@ -0,0 +1,23 @@
+package com.laioffer.jupiter.db;
+
+//The stored password hash and the name of a user, see MySQLConnection.getCredentials
+public class UserCredentials {
+    private final String passwordHash;
+    private final String firstName;
+    private final String lastName;
+
+    public UserCredentials(String passwordHash, String firstName, String lastName) {
+        this.passwordHash = passwordHash;
+        this.firstName = firstName;
+        this.lastName = lastName;
+    }
+
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    //The name returned on login, e.g. "John Smith"
+    public String getName() {
+        return firstName + " " + lastName;
+    }
+}
@@ -0,0 +1,78 @@
+package com.laioffer.jupiter.entity;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Shared Jackson configuration for every entity. ObjectMapper, ObjectReader and ObjectWriter are thread-safe once configured,
+// and building them is what fills Jackson's (de)serializer caches, so they are created once here instead of per request.
+public class EntityMapper {
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static final ObjectReader ITEM_READER = MAPPER.readerFor(Item.class);
+    public static final ObjectReader ITEM_ARRAY_READER = MAPPER.readerFor(Item[].class);
+    public static final ObjectReader GAME_READER = MAPPER.readerFor(Game.class);
+    public static final ObjectReader GAME_ARRAY_READER = MAPPER.readerFor(Game[].class);
+    public static final ObjectReader USER_READER = MAPPER.readerFor(User.class);
+    public static final ObjectReader LOGIN_REQUEST_READER = MAPPER.readerFor(LoginRequestBody.class);
+    public static final ObjectReader FAVORITE_REQUEST_READER = MAPPER.readerFor(FavoriteRequestBody.class);
+
+    public static final ObjectWriter ITEM_WRITER = MAPPER.writerFor(Item.class);
+    public static final ObjectWriter ITEM_ARRAY_WRITER = MAPPER.writerFor(Item[].class);
+    public static final ObjectWriter GAME_WRITER = MAPPER.writerFor(Game.class);
+    public static final ObjectWriter GAME_ARRAY_WRITER = MAPPER.writerFor(Game[].class);
+    public static final ObjectWriter GAME_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<Game>>() {});
+    public static final ObjectWriter USER_WRITER = MAPPER.writerFor(User.class);
+    public static final ObjectWriter LOGIN_RESPONSE_WRITER = MAPPER.writerFor(LoginResponseBody.class);
+    // e.g. {"STREAM":[item1, item2], "VIDEO":[...], "CLIP":[...]}
+    public static final ObjectWriter ITEM_MAP_WRITER = MAPPER.writerFor(new TypeReference<Map<String, List<Item>>>() {});
+
+    private static final Map<Class<?>, ObjectReader> READERS = new ConcurrentHashMap<>();
+
+    static {
+        READERS.put(Item.class, ITEM_READER);
+        READERS.put(Item[].class, ITEM_ARRAY_READER);
+        READERS.put(Game.class, GAME_READER);
+        READERS.put(Game[].class, GAME_ARRAY_READER);
+        READERS.put(User.class, USER_READER);
+        READERS.put(LoginRequestBody.class, LOGIN_REQUEST_READER);
+        READERS.put(FavoriteRequestBody.class, FAVORITE_REQUEST_READER);
+    }
+
+    private EntityMapper() {
+    }
+
+    // Returns the shared reader of the given class, creating it on first use for classes not listed above.
+    public static ObjectReader readerFor(Class<?> cl) {
+        return READERS.computeIfAbsent(cl, MAPPER::readerFor);
+    }
+
+    // Run every reader and writer once so the first requests after startup do not pay for building the serializers.
+    public static void warmUp() {
+        Item item = new Item.Builder().setId("0").setTitle("").setUrl("").setThumbnailUrl("").setBroadcasterName("")
+                .setGameId("0").setType(ItemType.STREAM).build();
+        Game game = new Game.Builder().id("0").setName("").setBoxArtUrl("").build();
+        User user = new User.Builder().setUserId("0").setPassword("").setFirstName("").setLastName("").build();
+        Map<String, List<Item>> itemMap = new HashMap<>();
+        itemMap.put(ItemType.STREAM.toString(), Collections.singletonList(item));
+        try {
+            ITEM_READER.readValue(ITEM_WRITER.writeValueAsString(item));
+            ITEM_ARRAY_READER.readValue(ITEM_ARRAY_WRITER.writeValueAsString(new Item[]{item}));
+            GAME_READER.readValue(GAME_WRITER.writeValueAsString(game));
+            GAME_ARRAY_READER.readValue(GAME_ARRAY_WRITER.writeValueAsString(new Game[]{game}));
+            GAME_LIST_WRITER.writeValueAsString(Collections.singletonList(game));
+            USER_READER.readValue(USER_WRITER.writeValueAsString(user));
+            LOGIN_REQUEST_READER.readValue("{\"user_id\":\"0\",\"password\":\"\"}");
+            FAVORITE_REQUEST_READER.readValue("{\"favorite\":" + ITEM_WRITER.writeValueAsString(item) + "}");
+            LOGIN_RESPONSE_WRITER.writeValueAsString(new LoginResponseBody("0", ""));
+            ITEM_MAP_WRITER.writeValueAsString(itemMap);
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.laioffer.jupiter.external;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.laioffer.jupiter.entity.EntityMapper;
+import com.laioffer.jupiter.entity.Game;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-memory index of the game names seen from Twitch, fed by the top games and by the results of searchGame.
+// - Exact name lookups (case and whitespace insensitive) are answered without calling Twitch, only a miss goes to Helix.
+// - Autocomplete walks a prefix trie whose nodes keep their best MAX_SUGGESTIONS games, the current top games first.
+//   When the prefix matches fewer games than asked, games sharing enough trigrams with the query are added, e.g. "minecarft".
+// Exact lookups see a new game right away. Autocomplete reads an immutable Searcher, rebuilt at most every REBUILD_DELAY_MILLIS
+// when games were added. The games are saved to SNAPSHOT_FILE every SAVE_INTERVAL_MILLIS when they changed, and loaded again at startup.
+public class GameIndex {
+    private static final int MAX_SUGGESTIONS = Integer.getInteger("jupiter.gameIndex.maxSuggestions", 10);
+    private static final int MAX_GAMES = Integer.getInteger("jupiter.gameIndex.maxGames", 50_000);
+    private static final double MIN_SIMILARITY = 0.3;
+    private static final File SNAPSHOT_FILE = new File(System.getProperty("jupiter.gameIndex.file",
+            new File(System.getProperty("java.io.tmpdir"), "jupiter-game-index.json").getPath()));
+    private static final long SAVE_INTERVAL_MILLIS = Long.getLong("jupiter.gameIndex.saveMillis", 60_000);
+    private static final long REBUILD_DELAY_MILLIS = 1000;
+
+    private static final GameIndex INSTANCE = new GameIndex();
+
+    // normalized name -> game, written under the lock
+    private final ConcurrentHashMap<String, Game> gamesByName = new ConcurrentHashMap<>();
+    // All fields below are guarded by this
+    // Ids of the last top games, most popular first
+    private List<String> topGameIds = Collections.emptyList();
+    private boolean dirty;
+    private boolean rebuildScheduled;
+    private ScheduledExecutorService scheduler;
+
+    private volatile Searcher searcher = Searcher.EMPTY;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong suggestions = new AtomicLong();
+
+    GameIndex() {
+    }
+
+    public static GameIndex getInstance() {
+        return INSTANCE;
+    }
+
+    // e.g. "  Just   Chatting " -> "just chatting"
+    static String normalize(String name) {
+        return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    // Returns the game of the exact name, or null if the index does not know it
+    public Game find(String name) {
+        lookups.incrementAndGet();
+        Game game = gamesByName.get(normalize(name));
+        if (game != null) {
+            hits.incrementAndGet();
+        }
+        return game;
+    }
+
+    // Returns up to limit games whose name starts with the query, then games with a similar name
+    public List<Game> suggest(String query, int limit) {
+        suggestions.incrementAndGet();
+        return searcher.suggest(normalize(query), Math.min(limit, MAX_SUGGESTIONS));
+    }
+
+    public synchronized void add(Game game) {
+        if (game.getName() == null || game.getId() == null) {
+            return;
+        }
+        if (putGame(game)) {
+            rebuild();
+        }
+    }
+
+    // Add the current top games, which also rank first in the suggestions
+    public synchronized void addTopGames(List<Game> topGames) {
+        boolean changed = false;
+        List<String> ids = new ArrayList<>();
+        for (Game game : topGames) {
+            if (game.getName() == null || game.getId() == null) {
+                continue;
+            }
+            changed |= putGame(game);
+            ids.add(game.getId());
+        }
+        if (changed || !ids.equals(topGameIds)) {
+            topGameIds = ids;
+            rebuild();
+        }
+    }
+
+    // Whether the index changed. Must hold the lock
+    private boolean putGame(Game game) {
+        String name = normalize(game.getName());
+        Game existing = gamesByName.get(name);
+        if (existing != null && existing.getId().equals(game.getId()) && Objects.equals(existing.getBoxArtUrl(), game.getBoxArtUrl())) {
+            return false;
+        }
+        if (existing == null && gamesByName.size() >= MAX_GAMES) {
+            return false;
+        }
+        gamesByName.put(name, game);
+        return true;
+    }
+
+    // Must hold the lock
+    private void rebuild() {
+        dirty = true;
+        if (scheduler == null) {
+            searcher = new Searcher(gamesByName, topGameIds);
+        } else if (!rebuildScheduled) {
+            rebuildScheduled = true;
+            scheduler.schedule(this::rebuildNow, REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void rebuildNow() {
+        Map<String, Game> games;
+        List<String> ids;
+        synchronized (this) {
+            rebuildScheduled = false;
+            games = new HashMap<>(gamesByName);
+            ids = topGameIds;
+        }
+        searcher = new Searcher(games, ids);
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        load();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "game-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::saveIfDirty, SAVE_INTERVAL_MILLIS, SAVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            rebuildScheduled = false;
+        }
+        saveIfDirty();
+    }
+
+    // e.g. {"topGameIds":["509658", ...], "games":[{"id":"509658", "name":"Just Chatting", "box_art_url":"..."}, ...]}
+    private synchronized void load() {
+        if (!SNAPSHOT_FILE.isFile()) {
+            return;
+        }
+        try {
+            JsonNode root = EntityMapper.MAPPER.readTree(SNAPSHOT_FILE);
+            Game[] games = EntityMapper.GAME_ARRAY_READER.readValue(root.path("games"));
+            for (Game game : games) {
+                if (game.getName() != null && game.getId() != null) {
+                    putGame(game);
+                }
+            }
+            List<String> ids = new ArrayList<>();
+            for (JsonNode id : root.path("topGameIds")) {
+                ids.add(id.asText());
+            }
+            topGameIds = ids;
+            rebuild();
+            dirty = false;
+        } catch (IOException e) {
+            // Start empty, the index fills up again from Twitch
+            e.printStackTrace();
+        }
+    }
+
+    private void saveIfDirty() {
+        Map<String, Object> root = new LinkedHashMap<>();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            root.put("topGameIds", new ArrayList<>(topGameIds));
+            root.put("games", new ArrayList<>(gamesByName.values()));
+            dirty = false;
+        }
+        try {
+            // Written next to the snapshot and moved over it, so a crash never leaves a partial file
+            File tmp = new File(SNAPSHOT_FILE.getPath() + ".tmp");
+            EntityMapper.MAPPER.writeValue(tmp, root);
+            Files.move(tmp.toPath(), SNAPSHOT_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    // e.g. {"games":1200, "lookups":500, "hits":470, "suggestions":9000}
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("games", (long) gamesByName.size());
+        stats.put("lookups", lookups.get());
+        stats.put("hits", hits.get());
+        stats.put("suggestions", suggestions.get());
+        return stats;
+    }
+
+    // Immutable search structures over the games. The games are numbered in suggestion order, the top games first
+    // in their rank and then the others by name, so the best games of a set are the ones with the smallest numbers.
+    private static final class Searcher {
+        private static final Searcher EMPTY = new Searcher(Collections.emptyMap(), Collections.emptyList());
+
+        private final Game[] games;
+        private final TrieNode root;
+        // trigram -> ascending numbers of the games that contain it
+        private final Map<String, int[]> postings;
+        private final int[] trigramCounts;
+
+        private static final class TrieNode {
+            private char[] labels = new char[0];
+            private TrieNode[] children = new TrieNode[0];
+            // Numbers of the best games of the subtree, ascending
+            private int[] top;
+
+            private TrieNode child(char label) {
+                int i = Arrays.binarySearch(labels, label);
+                return i >= 0 ? children[i] : null;
+            }
+        }
+
+        Searcher(Map<String, Game> gamesByName, List<String> topGameIds) {
+            Map<String, Integer> ranks = new HashMap<>();
+            for (int i = 0; i < topGameIds.size(); i++) {
+                ranks.putIfAbsent(topGameIds.get(i), i);
+            }
+            List<String> names = new ArrayList<>(gamesByName.keySet());
+            names.sort(Comparator.<String>comparingInt(name -> ranks.getOrDefault(gamesByName.get(name).getId(), Integer.MAX_VALUE))
+                    .thenComparing(Comparator.naturalOrder()));
+            this.games = new Game[names.size()];
+            this.root = new TrieNode();
+            Map<String, List<Integer>> postingLists = new HashMap<>();
+            this.trigramCounts = new int[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                games[i] = gamesByName.get(name);
+                insert(name, i);
+                Set<String> trigrams = trigrams(name);
+                trigramCounts[i] = trigrams.size();
+                for (String trigram : trigrams) {
+                    postingLists.computeIfAbsent(trigram, key -> new ArrayList<>()).add(i);
+                }
+            }
+            computeTop(root, new ArrayList<>());
+            this.postings = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> entry : postingLists.entrySet()) {
+                postings.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+
+        private void insert(String name, int number) {
+            TrieNode node = root;
+            for (int i = 0; i < name.length(); i++) {
+                char label = name.charAt(i);
+                int slot = Arrays.binarySearch(node.labels, label);
+                if (slot < 0) {
+                    slot = -slot - 1;
+                    node.labels = insertAt(node.labels, slot, label);
+                    TrieNode[] children = new TrieNode[node.children.length + 1];
+                    System.arraycopy(node.children, 0, children, 0, slot);
+                    System.arraycopy(node.children, slot, children, slot + 1, node.children.length - slot);
+                    children[slot] = new TrieNode();
+                    node.children = children;
+                }
+                node = node.children[slot];
+            }
+            // A name ending here is kept as the only number in the top list until computeTop
+            node.top = new int[]{number};
+        }
+
+        private static char[] insertAt(char[] labels, int slot, char label) {
+            char[] result = new char[labels.length + 1];
+            System.arraycopy(labels, 0, result, 0, slot);
+            result[slot] = label;
+            System.arraycopy(labels, slot, result, slot + 1, labels.length - slot);
+            return result;
+        }
+
+        // Merge the best games of the children with the game ending at the node, keeping MAX_SUGGESTIONS
+        private static void computeTop(TrieNode node, List<Integer> scratch) {
+            for (TrieNode child : node.children) {
+                computeTop(child, scratch);
+            }
+            scratch.clear();
+            if (node.top != null) {
+                scratch.add(node.top[0]);
+            }
+            for (TrieNode child : node.children) {
+                for (int number : child.top) {
+                    scratch.add(number);
+                }
+            }
+            Collections.sort(scratch);
+            int size = Math.min(scratch.size(), MAX_SUGGESTIONS);
+            node.top = new int[size];
+            for (int i = 0; i < size; i++) {
+                node.top[i] = scratch.get(i);
+            }
+        }
+
+        // e.g. "halo" -> {"  h", " ha", "hal", "alo", "lo "}
+        private static Set<String> trigrams(String name) {
+            String padded = "  " + name + " ";
+            Set<String> trigrams = new HashSet<>();
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+            return trigrams;
+        }
+
+        List<Game> suggest(String query, int limit) {
+            List<Game> result = new ArrayList<>();
+            if (limit <= 0 || query.isEmpty()) {
+                return result;
+            }
+            TrieNode node = root;
+            for (int i = 0; i < query.length() && node != null; i++) {
+                node = node.child(query.charAt(i));
+            }
+            Set<Integer> added = new HashSet<>();
+            if (node != null) {
+                for (int i = 0; i < node.top.length && result.size() < limit; i++) {
+                    result.add(games[node.top[i]]);
+                    added.add(node.top[i]);
+                }
+            }
+            if (result.size() < limit) {
+                addSimilar(query, limit, result, added);
+            }
+            return result;
+        }
+
+        // Append the games with a trigram similarity (Jaccard) of at least MIN_SIMILARITY, the most similar first
+        private void addSimilar(String query, int limit, List<Game> result, Set<Integer> added) {
+            Set<String> queryTrigrams = trigrams(query);
+            int[] shared = new int[games.length];
+            List<Integer> candidates = new ArrayList<>();
+            for (String trigram : queryTrigrams) {
+                int[] posting = postings.get(trigram);
+                if (posting == null) {
+                    continue;
+                }
+                for (int number : posting) {
+                    if (shared[number]++ == 0) {
+                        candidates.add(number);
+                    }
+                }
+            }
+            double[] similarity = new double[games.length];
+            List<Integer> similar = new ArrayList<>();
+            for (int number : candidates) {
+                similarity[number] = (double) shared[number] / (queryTrigrams.size() + trigramCounts[number] - shared[number]);
+                if (similarity[number] >= MIN_SIMILARITY && !added.contains(number)) {
+                    similar.add(number);
+                }
+            }
+            similar.sort(Comparator.<Integer>comparingDouble(number -> -similarity[number]).thenComparingInt(number -> number));
+            for (int i = 0; i < similar.size() && result.size() < limit; i++) {
+                result.add(games[similar.get(i)]);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.laioffer.jupiter.external;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// One Helix call that is sent a second time when the first attempt has not returned after a delay, e.g. the p95 latency of the endpoint.
+// Both attempts are non-blocking and the hedge is started by a timer. The first attempt to succeed wins and the other one is
+// cancelled, which aborts its exchange. The call only fails when both attempts failed. Cancelling the result cancels both attempts.
+class HedgedRequest<T> {
+    private final Supplier<CompletableFuture<T>> attempt;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final AtomicBoolean decided = new AtomicBoolean();
+    // Attempts that were started and have not failed yet
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private volatile CompletableFuture<T> primary;
+    private volatile CompletableFuture<T> hedge;
+    // Set before the hedge is started, its attempt may win before start() returns
+    private volatile boolean hedgeSent;
+    private volatile boolean hedgeWon;
+
+    HedgedRequest(Supplier<CompletableFuture<T>> attempt) {
+        this.attempt = attempt;
+    }
+
+    CompletableFuture<T> send(long delayMillis, TwitchCircuitBreaker breaker) {
+        result.whenComplete((value, failure) -> {
+            cancel(primary);
+            cancel(hedge);
+            if (hedgeSent) {
+                breaker.recordHedge(hedgeWon);
+            }
+        });
+        primary = start(false);
+        if (result.isDone()) {
+            cancel(primary);
+        } else {
+            CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(this::startHedge);
+        }
+        return result;
+    }
+
+    private void startHedge() {
+        if (result.isDone()) {
+            return;
+        }
+        hedgeSent = true;
+        pending.incrementAndGet();
+        hedge = start(true);
+        // The result may have been decided while the hedge was started
+        if (result.isDone()) {
+            cancel(hedge);
+        }
+    }
+
+    private CompletableFuture<T> start(boolean isHedge) {
+        CompletableFuture<T> future;
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, failure) -> {
+            if (failure == null) {
+                if (decided.compareAndSet(false, true)) {
+                    hedgeWon = isHedge;
+                    result.complete(value);
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(TwitchCache.unwrap(failure));
+            }
+        });
+        return future;
+    }
+
+    private void cancel(CompletableFuture<T> future) {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.laioffer.jupiter.external;
+
+import java.util.Collections;
+import java.util.List;
+
+// One page of a Twitch Helix response: the objects of the "data" array and the "pagination.cursor" used to request the next page.
+// The cursor is null when there are no more pages.
+public class HelixPage<T> {
+    private final List<T> data;
+    private final String cursor;
+
+    public HelixPage(List<T> data, String cursor) {
+        this.data = Collections.unmodifiableList(data);
+        this.cursor = cursor;
+    }
+
+    public List<T> getData() {
+        return data;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean hasNext() {
+        return cursor != null && !cursor.isEmpty();
+    }
+}
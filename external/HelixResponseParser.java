@@ -0,0 +1,51 @@
+package com.laioffer.jupiter.external;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.laioffer.jupiter.entity.EntityMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Single-pass decoder of Helix responses like {"data":[{...}, {...}], "pagination":{"cursor":"abc"}}.
+// Reads the response stream token by token and binds every element of "data" as soon as it is reached,
+// without building the body as a String or a JSON tree first. Unknown top-level fields are skipped.
+class HelixResponseParser {
+    private HelixResponseParser() {
+    }
+
+    static <T> HelixPage<T> parse(InputStream in, ObjectReader elementReader) throws IOException {
+        List<T> data = new ArrayList<>();
+        String cursor = null;
+        try (JsonParser parser = EntityMapper.MAPPER.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new TwitchException("Unexpected response format from Twitch API");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("data".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        data.add(elementReader.readValue(parser));
+                    }
+                } else if ("pagination".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String paginationField = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("cursor".equals(paginationField)) {
+                            cursor = parser.getValueAsString();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new HelixPage<>(data, cursor);
+    }
+}
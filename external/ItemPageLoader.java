@@ -0,0 +1,128 @@
+package com.laioffer.jupiter.external;
+
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+// Loads the pages of a Helix item search, driven by the "after" cursor of each page, without blocking a thread.
+// Every page depends on the cursor of the previous one, so pages are loaded one at a time, but up to `prefetch` pages are
+// loaded ahead so the next page is usually ready when the consumer asks for it.
+public class ItemPageLoader implements AutoCloseable {
+    // Helix returns at most 100 objects per page
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private final TwitchClient client;
+    private final String gameId;
+    private final ItemType type;
+    private final int prefetch;
+
+    // All fields below are guarded by this
+    private final Deque<HelixPage<Item>> readyPages = new ArrayDeque<>();
+    private String cursor;
+    private int remaining;
+    private boolean exhausted;
+    private boolean closed;
+    private boolean loading;
+    private Throwable failure;
+    // The consumer waiting for the page being loaded
+    private CompletableFuture<HelixPage<Item>> waiter;
+
+    ItemPageLoader(TwitchClient client, String gameId, ItemType type, int limit, String cursor, int prefetch) {
+        this.client = client;
+        this.gameId = gameId;
+        this.type = type;
+        this.prefetch = Math.max(1, prefetch);
+        this.cursor = cursor;
+        this.remaining = limit;
+        this.exhausted = limit <= 0;
+        fetchAhead();
+    }
+
+    // The next page, or null when there are no more pages. Only one call may wait for a page at a time.
+    public CompletableFuture<HelixPage<Item>> next() {
+        CompletableFuture<HelixPage<Item>> page;
+        synchronized (this) {
+            if (!readyPages.isEmpty()) {
+                page = CompletableFuture.completedFuture(readyPages.poll());
+            } else if (failure != null) {
+                page = CompletableFuture.failedFuture(failure);
+            } else if (closed || (exhausted && !loading)) {
+                page = CompletableFuture.completedFuture(null);
+            } else {
+                waiter = new CompletableFuture<>();
+                page = waiter;
+            }
+        }
+        fetchAhead();
+        return page;
+    }
+
+    // Start loading the next page if no page is loading and fewer than `prefetch` pages are waiting to be consumed.
+    // The lookup is started outside the lock, its callback may run on this thread.
+    private void fetchAhead() {
+        String pageCursor;
+        int pageSize;
+        synchronized (this) {
+            if (loading || exhausted || closed || failure != null || readyPages.size() >= prefetch) {
+                return;
+            }
+            loading = true;
+            pageCursor = cursor;
+            pageSize = Math.min(MAX_PAGE_SIZE, remaining);
+        }
+        client.fetchPageAsync(gameId, type, pageSize, pageCursor).whenComplete(this::onLoaded);
+    }
+
+    private void onLoaded(HelixPage<Item> page, Throwable loadFailure) {
+        CompletableFuture<HelixPage<Item>> waiting;
+        HelixPage<Item> nextPage = null;
+        Throwable pageFailure;
+        synchronized (this) {
+            loading = false;
+            if (closed) {
+                return;
+            }
+            if (loadFailure != null) {
+                failure = TwitchCache.unwrap(loadFailure);
+            } else {
+                readyPages.add(page);
+                cursor = page.getCursor();
+                remaining -= page.getData().size();
+                exhausted = !page.hasNext() || remaining <= 0 || page.getData().isEmpty();
+            }
+            waiting = waiter;
+            waiter = null;
+            pageFailure = failure;
+            if (waiting != null && failure == null) {
+                nextPage = readyPages.poll();
+            }
+        }
+        // Completed outside the lock, the consumer usually writes the page and asks for the next one from this callback
+        if (waiting != null) {
+            if (nextPage != null) {
+                waiting.complete(nextPage);
+            } else {
+                waiting.completeExceptionally(pageFailure);
+            }
+        }
+        fetchAhead();
+    }
+
+    // Stop loading pages, a page still loading is discarded when it arrives
+    @Override
+    public void close() {
+        CompletableFuture<HelixPage<Item>> waiting;
+        synchronized (this) {
+            closed = true;
+            readyPages.clear();
+            waiting = waiter;
+            waiter = null;
+        }
+        if (waiting != null) {
+            waiting.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.laioffer.jupiter.external;
+
+import com.laioffer.jupiter.entity.Item;
+
+import java.util.*;
+
+// Result of TwitchClient.searchItemsAsync, e.g. {"STREAM":[...], "VIDEO":[...], "CLIP":[...]}.
+// It is serialized exactly like a plain map. Types whose lookup failed or timed out are returned
+// with an empty list and reported by getFailedTypes(), so one slow endpoint does not fail the whole search.
+public class ItemSearchResult extends HashMap<String, List<Item>> {
+    private final Set<String> failedTypes = new TreeSet<>();
+
+    void markFailed(String type) {
+        put(type, Collections.emptyList());
+        failedTypes.add(type);
+    }
+
+    public Set<String> getFailedTypes() {
+        return Collections.unmodifiableSet(failedTypes);
+    }
+
+    public boolean isPartial() {
+        return !failedTypes.isEmpty();
+    }
+}
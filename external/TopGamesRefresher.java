@@ -0,0 +1,111 @@
+package com.laioffer.jupiter.external;
+
+import com.laioffer.jupiter.entity.Game;
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps an in-memory snapshot of the top games and the items of the first few of them up to date on a schedule.
+// Readers get the current snapshot with a single volatile read and never wait for Twitch.
+// When a refresh fails the last good snapshot keeps being served.
+public class TopGamesRefresher {
+    private static final int SNAPSHOT_GAME_LIMIT = Integer.getInteger("jupiter.twitch.topGames.snapshotSize", 20);
+    // Items are loaded for the first games only, enough for the default recommendation
+    private static final int SNAPSHOT_ITEM_GAME_LIMIT = Integer.getInteger("jupiter.twitch.topGames.itemGames", 3);
+    private static final int SNAPSHOT_ITEM_LIMIT = Integer.getInteger("jupiter.twitch.topGames.itemLimit", 10);
+    private static final long REFRESH_INTERVAL_MILLIS = Long.getLong("jupiter.twitch.topGames.refreshMillis", 30_000);
+
+    private static final TopGamesRefresher INSTANCE = new TopGamesRefresher();
+
+    // Refreshes yield the rate limit budget to user requests
+    private final TwitchClient client = new TwitchClient(TwitchRateLimiter.Priority.BACKGROUND);
+    private volatile TopGamesSnapshot snapshot = TopGamesSnapshot.EMPTY;
+    private volatile long lastRefreshDurationMillis;
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    private TopGamesRefresher() {
+    }
+
+    public static TopGamesRefresher getInstance() {
+        return INSTANCE;
+    }
+
+    public TopGamesSnapshot current() {
+        return snapshot;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "top-games-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    // Build a new snapshot from Twitch, the item lookups of the snapshot games are sent at the same time.
+    // The refresher thread waits for them, it is the only thread that does.
+    void refresh() {
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<List<Item>>> fetches = new ArrayList<>();
+        try {
+            List<Game> topGames = client.fetchTopGamesAsync(SNAPSHOT_GAME_LIMIT).get(REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            List<Game> itemGames = topGames.subList(0, Math.min(SNAPSHOT_ITEM_GAME_LIMIT, topGames.size()));
+            for (Game game : itemGames) {
+                for (ItemType type : ItemType.values()) {
+                    fetches.add(client.fetchByTypeAsync(game.getId(), type, SNAPSHOT_ITEM_LIMIT));
+                }
+            }
+            CompletableFuture.allOf(fetches.toArray(new CompletableFuture[0])).get(REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            Map<String, Map<ItemType, List<Item>>> itemsByGame = new HashMap<>();
+            Iterator<CompletableFuture<List<Item>>> it = fetches.iterator();
+            for (Game game : itemGames) {
+                Map<ItemType, List<Item>> itemsByType = new EnumMap<>(ItemType.class);
+                for (ItemType type : ItemType.values()) {
+                    itemsByType.put(type, it.next().join());
+                }
+                itemsByGame.put(game.getId(), itemsByType);
+            }
+            snapshot = new TopGamesSnapshot(topGames, itemsByGame, SNAPSHOT_ITEM_LIMIT, System.currentTimeMillis());
+            refreshCount.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // Keep serving the last good snapshot
+            e.printStackTrace();
+            failureCount.incrementAndGet();
+            for (CompletableFuture<List<Item>> fetch : fetches) {
+                fetch.cancel(true);
+            }
+        } finally {
+            lastRefreshDurationMillis = System.currentTimeMillis() - start;
+        }
+    }
+
+    // Counters for monitoring, e.g. {"ageMillis":1200, "lastRefreshDurationMillis":350, "refreshCount":10, "failureCount":0}
+    // ageMillis is -1 before the first successful refresh.
+    public Map<String, Long> getStats() {
+        TopGamesSnapshot current = snapshot;
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("ageMillis", current.isEmpty() ? -1 : System.currentTimeMillis() - current.getCreatedAt());
+        stats.put("lastRefreshDurationMillis", lastRefreshDurationMillis);
+        stats.put("refreshCount", refreshCount.get());
+        stats.put("failureCount", failureCount.get());
+        return stats;
+    }
+}
@@ -0,0 +1,60 @@
+package com.laioffer.jupiter.external;
+
+import com.laioffer.jupiter.entity.Game;
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.*;
+
+// Immutable view of the current top games on Twitch and the streams/videos/clips of the first few of them.
+// A snapshot is never modified after it is built, TopGamesRefresher replaces the whole object instead.
+public class TopGamesSnapshot {
+    static final TopGamesSnapshot EMPTY = new TopGamesSnapshot(Collections.emptyList(), Collections.emptyMap(), 0, 0);
+
+    private final List<Game> topGames;
+    // gameId -> type -> items
+    private final Map<String, Map<ItemType, List<Item>>> itemsByGame;
+    private final int itemLimit;
+    private final long createdAt;
+
+    TopGamesSnapshot(List<Game> topGames, Map<String, Map<ItemType, List<Item>>> itemsByGame, int itemLimit, long createdAt) {
+        this.topGames = Collections.unmodifiableList(new ArrayList<>(topGames));
+        Map<String, Map<ItemType, List<Item>>> copy = new HashMap<>();
+        for (Map.Entry<String, Map<ItemType, List<Item>>> entry : itemsByGame.entrySet()) {
+            Map<ItemType, List<Item>> itemsByType = new EnumMap<>(ItemType.class);
+            for (Map.Entry<ItemType, List<Item>> typeEntry : entry.getValue().entrySet()) {
+                itemsByType.put(typeEntry.getKey(), Collections.unmodifiableList(new ArrayList<>(typeEntry.getValue())));
+            }
+            copy.put(entry.getKey(), Collections.unmodifiableMap(itemsByType));
+        }
+        this.itemsByGame = Collections.unmodifiableMap(copy);
+        this.itemLimit = itemLimit;
+        this.createdAt = createdAt;
+    }
+
+    // Returns the first x top games, or null if the snapshot does not hold that many games.
+    public List<Game> getTopGames(int limit) {
+        if (limit > topGames.size()) {
+            return null;
+        }
+        return topGames.subList(0, limit);
+    }
+
+    // Returns the first x items of the given game and type, or null if the snapshot cannot answer the lookup.
+    public List<Item> getItems(String gameId, ItemType type, int limit) {
+        Map<ItemType, List<Item>> itemsByType = itemsByGame.get(gameId);
+        if (itemsByType == null || !itemsByType.containsKey(type) || limit > itemLimit) {
+            return null;
+        }
+        List<Item> items = itemsByType.get(type);
+        return items.subList(0, Math.min(limit, items.size()));
+    }
+
+    public boolean isEmpty() {
+        return createdAt == 0;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+}
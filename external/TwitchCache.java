@@ -0,0 +1,270 @@
+package com.laioffer.jupiter.external;
+
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Bounded in-memory cache in front of the Twitch Helix lookups, keyed by (endpoint, gameId, type, limit).
+// - Every endpoint has its own TTL, e.g. streams change within seconds while clips and videos change within minutes.
+// - After the TTL an entry is still served for a stale period while one background refresh replaces it (stale-while-revalidate).
+// - An empty result, i.e. an empty collection or Optional, is kept for a short negative TTL only and never served stale,
+//   so e.g. a game that shows up on Twitch later is found soon. A null result is not cached at all.
+// - Concurrent misses on the same key share one upstream call (single-flight). The loader returns a future and no thread waits
+//   for it, a caller that gives up on its future only stops waiting and the other callers still get the result.
+// - The least recently used entry is evicted once the cache holds MAX_ENTRIES entries.
+// - While the circuit breaker of the endpoint is open, an entry past its stale period is still served if there is one.
+public class TwitchCache {
+    private static final int MAX_ENTRIES = Integer.getInteger("jupiter.twitch.cache.maxEntries", 10000);
+
+    public enum Endpoint {
+        TOP_GAMES(60_000),
+        GAME_SEARCH(3_600_000),
+        STREAMS(30_000),
+        VIDEOS(300_000),
+        CLIPS(300_000);
+
+        private final long ttlMillis;
+        private final long staleMillis;
+        private final long negativeTtlMillis;
+
+        Endpoint(long defaultTtlMillis) {
+            // e.g. -Djupiter.twitch.cache.streams.ttlMillis=10000
+            String prefix = "jupiter.twitch.cache." + name().toLowerCase();
+            this.ttlMillis = Long.getLong(prefix + ".ttlMillis", defaultTtlMillis);
+            this.staleMillis = Long.getLong(prefix + ".staleMillis", ttlMillis);
+            this.negativeTtlMillis = Long.getLong(prefix + ".negativeTtlMillis", Math.min(ttlMillis, 30_000));
+        }
+
+        public static Endpoint of(ItemType type) {
+            switch (type) {
+                case STREAM:
+                    return STREAMS;
+                case VIDEO:
+                    return VIDEOS;
+                default:
+                    return CLIPS;
+            }
+        }
+    }
+
+    public static final class Key {
+        private final Endpoint endpoint;
+        private final String gameId;
+        private final ItemType type;
+        private final int limit;
+
+        public Key(Endpoint endpoint, String gameId, ItemType type, int limit) {
+            this.endpoint = endpoint;
+            this.gameId = gameId;
+            this.type = type;
+            this.limit = limit;
+        }
+
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return endpoint == other.endpoint && limit == other.limit && type == other.type && Objects.equals(gameId, other.gameId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, gameId, type, limit);
+        }
+
+        @Override
+        public String toString() {
+            return endpoint + "/" + gameId + "/" + type + "/" + limit;
+        }
+    }
+
+    private static class CacheEntry {
+        private final Object value;
+        private final long freshUntil;
+        private final long staleUntil;
+
+        CacheEntry(Object value, Endpoint endpoint) {
+            long now = System.currentTimeMillis();
+            this.value = value;
+            if (isEmpty(value)) {
+                this.freshUntil = now + endpoint.negativeTtlMillis;
+                this.staleUntil = freshUntil;
+            } else {
+                this.freshUntil = now + endpoint.ttlMillis;
+                this.staleUntil = freshUntil + endpoint.staleMillis;
+            }
+        }
+
+        private static boolean isEmpty(Object value) {
+            return (value instanceof Collection && ((Collection<?>) value).isEmpty())
+                    || (value instanceof Optional && !((Optional<?>) value).isPresent());
+        }
+    }
+
+    private static final TwitchCache INSTANCE = new TwitchCache();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong circuitOpenFallbacks = new AtomicLong();
+
+    // Access-ordered so the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, CacheEntry> entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+            if (size() > MAX_ENTRIES) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    private final ConcurrentHashMap<Key, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private TwitchCache() {
+    }
+
+    public static TwitchCache getInstance() {
+        return INSTANCE;
+    }
+
+    // Return the cached value of the key, starting the loader only when there is no usable entry.
+    // Giving up on the returned future does not cancel the load, it still fills the cache.
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> getAsync(Key key, Supplier<CompletableFuture<T>> loader) {
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.freshUntil) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture((T) entry.value);
+        }
+        if (entry != null && now < entry.staleUntil) {
+            staleHits.incrementAndGet();
+            refreshInBackground(key, loader);
+            return CompletableFuture.completedFuture((T) entry.value);
+        }
+        misses.incrementAndGet();
+        CompletableFuture<Object> future = load(key, loader);
+        // A new stage, so the caller cannot cancel the shared load through it
+        return future.handle((value, failure) -> {
+            if (failure == null) {
+                return (T) value;
+            }
+            Throwable cause = unwrap(failure);
+            if (cause instanceof TwitchCircuitOpenException && entry != null) {
+                circuitOpenFallbacks.incrementAndGet();
+                return (T) entry.value;
+            }
+            throw cause instanceof CompletionException ? (CompletionException) cause : new CompletionException(cause);
+        });
+    }
+
+    // Return the fresh cached value of the key, or null without loading it. Null values are never cached, so null always means a miss.
+    @SuppressWarnings("unchecked")
+    public <T> T getIfFresh(Key key) {
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && System.currentTimeMillis() < entry.freshUntil) {
+            hits.incrementAndGet();
+            return (T) entry.value;
+        }
+        return null;
+    }
+
+    // Cache a value loaded outside of get(), e.g. one game of a lookup that covered several games
+    public void put(Key key, Object value) {
+        if (value == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new CacheEntry(value, key.endpoint));
+        }
+    }
+
+    private void refreshInBackground(Key key, Supplier<? extends CompletableFuture<?>> loader) {
+        if (!inFlight.containsKey(key)) {
+            load(key, loader);
+        }
+    }
+
+    // Single-flight load: the first caller starts the loader, concurrent callers for the same key get the same future.
+    // The key leaves inFlight before the future completes, so a caller woken by a failed load starts a new one.
+    private CompletableFuture<Object> load(Key key, Supplier<? extends CompletableFuture<?>> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        CompletableFuture<?> loading;
+        try {
+            loading = loader.get();
+        } catch (RuntimeException e) {
+            loading = CompletableFuture.failedFuture(e);
+        }
+        loading.whenComplete((value, failure) -> {
+            if (failure == null) {
+                put(key, value);
+                inFlight.remove(key, future);
+                future.complete(value);
+            } else {
+                loadFailures.incrementAndGet();
+                inFlight.remove(key, future);
+                future.completeExceptionally(unwrap(failure));
+            }
+        });
+        return future;
+    }
+
+    // The cause of a failure passed along a chain of futures, e.g. the TwitchException inside a CompletionException
+    static Throwable unwrap(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException) && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    // Counters for monitoring, e.g. {"size":120, "hits":4000, "staleHits":30, "misses":150, "evictions":0, "loadFailures":2,
+    // "circuitOpenFallbacks":0, "loading":3}
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        synchronized (entries) {
+            stats.put("size", (long) entries.size());
+        }
+        stats.put("hits", hits.get());
+        stats.put("staleHits", staleHits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("loadFailures", loadFailures.get());
+        stats.put("circuitOpenFallbacks", circuitOpenFallbacks.get());
+        stats.put("loading", (long) inFlight.size());
+        return stats;
+    }
+}
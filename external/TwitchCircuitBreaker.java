@@ -0,0 +1,218 @@
+package com.laioffer.jupiter.external;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Circuit breaker of one Helix endpoint, e.g. streams, so a slow or failing endpoint does not hold every request thread.
+// - CLOSED: calls go through, the outcomes of the last WINDOW_SIZE calls are counted. Once there are MIN_CALLS of them,
+//   the breaker opens when FAILURE_RATE_PERCENT of them failed or SLOW_RATE_PERCENT of them took SLOW_CALL_MILLIS or more.
+// - OPEN: calls fail right away with TwitchCircuitOpenException for OPEN_MILLIS, the callers serve a cached or empty result.
+// - HALF_OPEN: a single probe call is let through, it closes the breaker when it is fast and succeeds, otherwise opens it again.
+// The latencies of the successful calls also give the p95 used as the delay of hedged requests.
+public class TwitchCircuitBreaker {
+    private static final int WINDOW_SIZE = Integer.getInteger("jupiter.twitch.breaker.windowSize", 50);
+    private static final int MIN_CALLS = Integer.getInteger("jupiter.twitch.breaker.minCalls", 20);
+    private static final int FAILURE_RATE_PERCENT = Integer.getInteger("jupiter.twitch.breaker.failureRatePercent", 50);
+    private static final int SLOW_RATE_PERCENT = Integer.getInteger("jupiter.twitch.breaker.slowRatePercent", 50);
+    private static final long SLOW_CALL_MILLIS = Long.getLong("jupiter.twitch.breaker.slowCallMillis", 2000);
+    private static final long OPEN_MILLIS = Long.getLong("jupiter.twitch.breaker.openMillis", 5000);
+    private static final int LATENCY_SAMPLES = 128;
+    // The p95 is not used for hedging before this many samples
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final int PERCENTILE_REFRESH_INTERVAL = 16;
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Map<TwitchCache.Endpoint, TwitchCircuitBreaker> BREAKERS = createBreakers();
+
+    // All fields below are guarded by this
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean probeInFlight;
+    // Ring buffer of the FAILED and SLOW flags of the last calls
+    private final byte[] outcomes = new byte[WINDOW_SIZE];
+    private int outcomeCount;
+    private int nextOutcome;
+    private int failedCount;
+    private int slowCount;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private int nextLatency;
+
+    private volatile long p95Millis = -1;
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private final AtomicLong trips = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    TwitchCircuitBreaker() {
+    }
+
+    public static TwitchCircuitBreaker of(TwitchCache.Endpoint endpoint) {
+        return BREAKERS.get(endpoint);
+    }
+
+    // Whether the call may be sent. Every permitted call must be followed by onSuccess(), onFailure() or onIgnored().
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                shortCircuited.incrementAndGet();
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) {
+                shortCircuited.incrementAndGet();
+                return false;
+            }
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    public void onSuccess(long latencyMillis) {
+        record(latencyMillis, false);
+    }
+
+    public void onFailure(long latencyMillis) {
+        record(latencyMillis, true);
+    }
+
+    // The call ended without telling anything about the health of Twitch, e.g. it was not sent because of the rate limit
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    private synchronized void record(long latencyMillis, boolean failed) {
+        boolean slow = latencyMillis >= SLOW_CALL_MILLIS;
+        if (!failed) {
+            recordLatency(latencyMillis);
+        }
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                open();
+            } else {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Sent before the breaker opened
+            return;
+        }
+        if (outcomeCount == WINDOW_SIZE) {
+            byte evicted = outcomes[nextOutcome];
+            failedCount -= evicted & FAILED;
+            slowCount -= (evicted & SLOW) >> 1;
+        } else {
+            outcomeCount++;
+        }
+        byte outcome = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+        outcomes[nextOutcome] = outcome;
+        nextOutcome = (nextOutcome + 1) % WINDOW_SIZE;
+        failedCount += outcome & FAILED;
+        slowCount += (outcome & SLOW) >> 1;
+        if (outcomeCount >= MIN_CALLS && (failedCount * 100 >= FAILURE_RATE_PERCENT * outcomeCount
+                || slowCount * 100 >= SLOW_RATE_PERCENT * outcomeCount)) {
+            open();
+        }
+    }
+
+    private void recordLatency(long latencyMillis) {
+        latencies[nextLatency] = latencyMillis;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+        if (latencyCount >= MIN_LATENCY_SAMPLES && (latencyCount == MIN_LATENCY_SAMPLES || nextLatency % PERCENTILE_REFRESH_INTERVAL == 0)) {
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            p95Millis = sorted[(int) Math.ceil(latencyCount * 0.95) - 1];
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+        probeInFlight = false;
+        trips.incrementAndGet();
+        resetWindow();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        probeInFlight = false;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        Arrays.fill(outcomes, (byte) 0);
+        outcomeCount = 0;
+        nextOutcome = 0;
+        failedCount = 0;
+        slowCount = 0;
+    }
+
+    // The p95 latency of the recent successful calls, or -1 while there are too few of them
+    public long getHedgeDelayMillis() {
+        return p95Millis;
+    }
+
+    void recordHedge(boolean hedgeWon) {
+        hedged.incrementAndGet();
+        if (hedgeWon) {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    // e.g. {"state":"CLOSED", "calls":50, "failureRate":0.02, "slowRate":0.0, "p95Millis":420, "shortCircuited":0, "trips":1, "hedged":12, "hedgeWins":5, "hedgeWinRate":0.42}
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("state", state.name());
+            stats.put("calls", outcomeCount);
+            stats.put("failureRate", outcomeCount == 0 ? 0.0 : (double) failedCount / outcomeCount);
+            stats.put("slowRate", outcomeCount == 0 ? 0.0 : (double) slowCount / outcomeCount);
+        }
+        stats.put("p95Millis", p95Millis);
+        stats.put("shortCircuited", shortCircuited.get());
+        stats.put("trips", trips.get());
+        long hedgeCount = hedged.get();
+        long hedgeWinCount = hedgeWins.get();
+        stats.put("hedged", hedgeCount);
+        stats.put("hedgeWins", hedgeWinCount);
+        stats.put("hedgeWinRate", hedgeCount == 0 ? 0.0 : (double) hedgeWinCount / hedgeCount);
+        return stats;
+    }
+
+    // The stats of every endpoint, e.g. {"streams":{...}, "videos":{...}, ...}
+    public static Map<String, Object> getAllStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<TwitchCache.Endpoint, TwitchCircuitBreaker> entry : BREAKERS.entrySet()) {
+            stats.put(entry.getKey().name().toLowerCase(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    private static Map<TwitchCache.Endpoint, TwitchCircuitBreaker> createBreakers() {
+        Map<TwitchCache.Endpoint, TwitchCircuitBreaker> breakers = new EnumMap<>(TwitchCache.Endpoint.class);
+        for (TwitchCache.Endpoint endpoint : TwitchCache.Endpoint.values()) {
+            breakers.put(endpoint, new TwitchCircuitBreaker());
+        }
+        return breakers;
+    }
+}
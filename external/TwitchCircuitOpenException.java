@@ -0,0 +1,8 @@
+package com.laioffer.jupiter.external;
+
+// Thrown without calling Twitch while the circuit breaker of the endpoint is open.
+public class TwitchCircuitOpenException extends TwitchException {
+    public TwitchCircuitOpenException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -1,35 +1,66 @@
 package com.laioffer.jupiter.external;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.laioffer.jupiter.entity.EntityMapper;
 import com.laioffer.jupiter.entity.Game;
 import com.laioffer.jupiter.entity.Item;
 import com.laioffer.jupiter.entity.ItemType;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
+// Every lookup is non-blocking: it returns a CompletableFuture that is completed from the callback of the HTTP response,
+// so no thread waits for Twitch.
 public class TwitchClient {
     private static final String TOKEN = "Bearer d0fuswj3xextnjd64ulntptifxlz0l";
     private static final String CLIENT_ID = "yc5yrcwa1sbdifyo39fa8ts0fihjv2";
-    private static final String TOP_GAME_URL = "https://api.twitch.tv/helix/games/top?first=%s";
-    private static final String GAME_SEARCH_URL_TEMPLATE = "https://api.twitch.tv/helix/games?name=%s";
+    // e.g. -Djupiter.twitch.apiUrl=http://localhost:8089 to run against a stub of Helix
+    private static final String TWITCH_API_URL = System.getProperty("jupiter.twitch.apiUrl", "https://api.twitch.tv");
+    private static final String TOP_GAME_URL = TWITCH_API_URL + "/helix/games/top?first=%s";
+    private static final String GAME_SEARCH_URL_TEMPLATE = TWITCH_API_URL + "/helix/games?name=%s";
     private static final int DEFAULT_GAME_LIMIT = 20;
 
-    private static final String STREAM_SEARCH_URL_TEMPLATE = "https://api.twitch.tv/helix/streams?game_id=%s&first=%s";
-    private static final String VIDEO_SEARCH_URL_TEMPLATE = "https://api.twitch.tv/helix/videos?game_id=%s&first=%s";
-    private static final String CLIP_SEARCH_URL_TEMPLATE = "https://api.twitch.tv/helix/clips?game_id=%s&first=%s";
+    private static final String STREAM_SEARCH_URL_TEMPLATE = TWITCH_API_URL + "/helix/streams?game_id=%s&first=%s";
+    // The game_id parameters are appended, e.g. https://api.twitch.tv/helix/streams?first=100&game_id=1&game_id=2
+    private static final String MULTI_GAME_STREAM_SEARCH_URL_TEMPLATE = TWITCH_API_URL + "/helix/streams?first=%s";
+    // Helix takes up to 100 game_id parameters and returns up to 100 items per page
+    private static final int MAX_GAMES_PER_REQUEST = 100;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final String VIDEO_SEARCH_URL_TEMPLATE = TWITCH_API_URL + "/helix/videos?game_id=%s&first=%s";
+    private static final String CLIP_SEARCH_URL_TEMPLATE = TWITCH_API_URL + "/helix/clips?game_id=%s&first=%s";
     private static final String TWITCH_BASE_URL = "https://api.twitch.tv";
     private static final int DEFAULT_SEARCH_LIMIT = 20;
+    private static final TwitchCache CACHE = TwitchCache.getInstance();
+    private static final long SEARCH_DEADLINE_MILLIS = Long.getLong("jupiter.twitch.searchDeadlineMillis", 3000);
+    private static final TwitchRateLimiter RATE_LIMITER = TwitchRateLimiter.getInstance();
+    // Hedged requests send a second attempt when the first one is slower than the p95 of the endpoint
+    private static final boolean HEDGING_ENABLED = Boolean.getBoolean("jupiter.twitch.hedge.enabled");
+    private static final long HEDGE_MIN_DELAY_MILLIS = Long.getLong("jupiter.twitch.hedge.minDelayMillis", 50);
+
+    // Priority of the calls of this client in the rate limit scheduler
+    private final TwitchRateLimiter.Priority priority;
+
+    public TwitchClient() {
+        this(TwitchRateLimiter.Priority.INTERACTIVE);
+    }
+
+    public TwitchClient(TwitchRateLimiter.Priority priority) {
+        this.priority = priority;
+    }
 
     // Build the request URL which will be used when calling Twitch APIs, e.g. https://api.twitch.tv/helix/games/top when trying to get top games.
     private String buildGameURL(String url, String gameName, int limit) {
@@ -45,140 +76,430 @@ public class TwitchClient {
             return String.format(url, gameName);//GAME_SEARCH_URL_TEMPLATE
         }
     }
-    // Send HTTP request to Twitch Backend based on the given URL, and returns the body of the HTTP response returned from Twitch backend.
-    private String searchTwitch(String url) throws TwitchException {
-        CloseableHttpClient httpClient = HttpClients.createDefault();
-        // Define the response handler to parse and return HTTP response body returned from Twitch
-        ResponseHandler<String> responseHandler = response -> {
-            int responseCode = response.getStatusLine().getStatusCode();
-            if (responseCode != 200) {//Twitch API 不支持上传和修改，所以请求成功只会返回200
-                System.out.println("Response status: " + response.getStatusLine().getReasonPhrase());
-                throw new TwitchException("Failed to get result from Twitch API");
+    // Send HTTP request to Twitch Backend based on the given URL, and returns the page of objects in the HTTP response returned from Twitch backend.
+    // The call goes through the circuit breaker of the endpoint, and is hedged when hedging is enabled.
+    private <T> CompletableFuture<HelixPage<T>> searchTwitch(TwitchCache.Endpoint endpoint, String url, ObjectReader elementReader) {
+        TwitchCircuitBreaker breaker = TwitchCircuitBreaker.of(endpoint);
+        if (!breaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new TwitchCircuitOpenException("Twitch API circuit is open for " + endpoint));
+        }
+        long start = System.nanoTime();
+        CompletableFuture<HelixPage<T>> page;
+        long hedgeDelay = breaker.getHedgeDelayMillis();
+        if (HEDGING_ENABLED && hedgeDelay >= 0) {
+            page = new HedgedRequest<HelixPage<T>>(() -> send(url, elementReader))
+                    .send(Math.max(hedgeDelay, HEDGE_MIN_DELAY_MILLIS), breaker);
+        } else {
+            page = send(url, elementReader);
+        }
+        page.whenComplete((result, failure) -> {
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Throwable cause = failure == null ? null : TwitchCache.unwrap(failure);
+            if (cause == null) {
+                breaker.onSuccess(latencyMillis);
+            } else if (cause instanceof TwitchRateLimitException || cause instanceof TwitchInterruptedException
+                    || cause instanceof CancellationException) {
+                // Not sent, throttled or given up by the caller, it tells nothing about the health of the endpoint
+                breaker.onIgnored();
+            } else {
+                breaker.onFailure(latencyMillis);
             }
-            HttpEntity entity = response.getEntity();
-            if (entity == null) {
-                throw new TwitchException("Failed to get result from Twitch API");
+        });
+        return page;
+    }
+
+    // Define the HTTP request, TOKEN and CLIENT_ID are used for user authentication on Twitch backend
+    private static HttpRequest newRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(TwitchHttpClient.requestTimeout())
+                .header("Authorization", TOKEN)
+                .header("Client-Id", CLIENT_ID)
+                .GET()
+                .build();
+    }
+
+    // Send one attempt of the request once the rate limiter gives a point of the budget, without blocking.
+    // elementReader binds each object of the "data" array while the body is decoded.
+    // Cancelling the returned future gives up the wait for the budget, or aborts the request when it was sent.
+    private <T> CompletableFuture<HelixPage<T>> send(String url, ObjectReader elementReader) {
+        CompletableFuture<HelixPage<T>> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<?>> exchange = new AtomicReference<>();
+        // Waits for the rate limit budget, or fails fast with TwitchRateLimitException
+        CompletableFuture<Void> permit = RATE_LIMITER.acquire(priority);
+        result.whenComplete((page, failure) -> {
+            if (result.isCancelled()) {
+                permit.cancel(false);
+                CompletableFuture<?> sent = exchange.get();
+                if (sent != null) {
+                    sent.cancel(true);
+                }
             }
-            JSONObject obj = new JSONObject(EntityUtils.toString(entity));
-            return obj.getJSONArray("data").toString();
-        };
-        try{
-            // Define the HTTP request, TOKEN and CLIENT_ID are used for user authentication on Twitch backend
-            HttpGet request = new HttpGet(url);
-            request.setHeader("Authorization", TOKEN);
-            request.setHeader("Client-Id", CLIENT_ID);
-            return httpClient.execute(request,responseHandler);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new TwitchException("Failed to get result from Twitch API");
-        } finally {
-            try {
-                httpClient.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        });
+        permit.whenComplete((granted, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally(TwitchCache.unwrap(failure));
+                return;
             }
-        }
+            if (result.isDone()) {
+                RATE_LIMITER.release();
+                return;
+            }
+            TwitchHttpClient.onRequestSent();
+            CompletableFuture<HttpResponse<byte[]>> sent = TwitchHttpClient.get().sendAsync(newRequest(url), HttpResponse.BodyHandlers.ofByteArray());
+            exchange.set(sent);
+            // Cancelled while the request was being sent
+            if (result.isDone()) {
+                sent.cancel(true);
+            }
+            sent.whenComplete((response, error) -> {
+                TwitchHttpClient.onRequestEnded();
+                if (error != null) {
+                    RATE_LIMITER.release();
+                    // An aborted request lost against its hedge, or its caller gave up on it
+                    if (!result.isDone()) {
+                        TwitchCache.unwrap(error).printStackTrace();
+                        result.completeExceptionally(new TwitchException("Failed to get result from Twitch API"));
+                    }
+                    return;
+                }
+                try {
+                    result.complete(parse(response, elementReader));
+                } catch (TwitchException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        });
+        return result;
     }
 
-    // Convert JSON format data returned from Twitch to an Arraylist of Game objects
-    private List<Game> getGameList(String data) throws TwitchException {
-        ObjectMapper mapper = new ObjectMapper();
-        try{
-            return Arrays.asList(mapper.readValue(data, Game[].class));
+    // The body is buffered by the HTTP client and decoded in one streaming pass, without building a String or a tree
+    private static <T> HelixPage<T> parse(HttpResponse<byte[]> response, ObjectReader elementReader) throws TwitchException {
+        RATE_LIMITER.onResponse(response.statusCode(), response.headers());
+        int responseCode = response.statusCode();
+        if (responseCode == TwitchRateLimiter.SC_TOO_MANY_REQUESTS) {
+            throw new TwitchRateLimitException("Twitch API rate limit exceeded");
+        }
+        if (responseCode != 200) {//Twitch API 不支持上传和修改，所以请求成功只会返回200
+            System.out.println("Response status: " + responseCode);
+            throw new TwitchException("Failed to get result from Twitch API");
+        }
+        try (InputStream in = new ByteArrayInputStream(response.body())) {
+            return HelixResponseParser.parse(in, elementReader);
         } catch (JsonProcessingException e) {
             e.printStackTrace();
-            throw new TwitchException("Failed to parse game data from Twitch API");
+            throw new TwitchException("Failed to parse data from Twitch API");
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new TwitchException("Failed to get result from Twitch API");
         }
     }
+
+    // Returns the list of Game objects returned from Twitch for the given URL
+    private CompletableFuture<List<Game>> getGameList(TwitchCache.Endpoint endpoint, String url) {
+        return this.<Game>searchTwitch(endpoint, url, EntityMapper.GAME_READER).thenApply(HelixPage::getData);
+    }
     // Integrate search() and getGameList() together, returns the top x popular games from Twitch.
-    public List<Game> topGames(int limit) throws TwitchException {
+    // Served from the in-memory top games snapshot when it is big enough, otherwise from the cache.
+    public CompletableFuture<List<Game>> topGamesAsync(int limit) {
         if (limit <= 0) {
             limit = DEFAULT_GAME_LIMIT;
         }
-        String url = buildGameURL(TOP_GAME_URL,"", limit);
-        String data = searchTwitch(url);
+        List<Game> snapshotGames = TopGamesRefresher.getInstance().current().getTopGames(limit);
+        if (snapshotGames != null) {
+            return CompletableFuture.completedFuture(snapshotGames);
+        }
+        int gameLimit = limit;
+        TwitchCache.Key key = new TwitchCache.Key(TwitchCache.Endpoint.TOP_GAMES, null, null, gameLimit);
+        return CACHE.<List<Game>>getAsync(key, () -> fetchTopGamesAsync(gameLimit).thenApply(Collections::unmodifiableList))
+                // Nothing cached while Twitch is unavailable
+                .exceptionally(failure -> whenCircuitOpen(failure, Collections.emptyList()));
+    }
 
-        return getGameList(data);
+    // Uncached top games lookup, used by the cache and the top games snapshot. The games are added to the game index.
+    CompletableFuture<List<Game>> fetchTopGamesAsync(int limit) {
+        return getGameList(TwitchCache.Endpoint.TOP_GAMES, buildGameURL(TOP_GAME_URL, "", limit)).thenApply(games -> {
+            GameIndex.getInstance().addTopGames(games);
+            return games;
+        });
     }
-    // Integrate search() and getGameList() together, returns the dedicated game based on the game name.
-    public Game searchGame(String gameName) throws TwitchException {
-        List<Game> gameList = getGameList(searchTwitch(buildGameURL(GAME_SEARCH_URL_TEMPLATE, gameName,0)));
-        if (gameList.size() != 0) {
-            return gameList.get(0);
+    // Integrate search() and getGameList() together, returns the dedicated game based on the game name, or null.
+    // Served from the game index when it knows the name, Twitch is only asked on a miss and the game found is added to the index.
+    public CompletableFuture<Game> searchGameAsync(String gameName) {
+        Game indexed = GameIndex.getInstance().find(gameName);
+        if (indexed != null) {
+            return CompletableFuture.completedFuture(indexed);
         }
-        return  null;
+        TwitchCache.Key key = new TwitchCache.Key(TwitchCache.Endpoint.GAME_SEARCH, gameName, null, 0);
+        // A name that is not found is cached as Optional.empty(), for the short negative TTL of TwitchCache
+        return CACHE.<Optional<Game>>getAsync(key, () -> getGameList(TwitchCache.Endpoint.GAME_SEARCH, buildGameURL(GAME_SEARCH_URL_TEMPLATE, gameName, 0))
+                .thenApply(gameList -> {
+                    if (gameList.size() != 0) {
+                        GameIndex.getInstance().add(gameList.get(0));
+                        return Optional.of(gameList.get(0));
+                    }
+                    return Optional.empty();
+                }))
+                .thenApply(game -> game.orElse(null));
     }
 
     // Similar to buildGameURL, build Search URL that will be used when calling Twitch API. e.g. https://api.twitch.tv/helix/clips?game_id=12924.
-    private String buildSearchURL(String url, String gameId, int limit) {
+    // The cursor of a previous page is passed as the "after" parameter to get the next page, it is null for the first page.
+    private String buildSearchURL(String url, String gameId, int limit, String cursor) {
         try{
             gameId = URLEncoder.encode(gameId, "UTF-8");
+            url = String.format(url, gameId, limit);
+            if (cursor != null) {
+                url += "&after=" + URLEncoder.encode(cursor, "UTF-8");
+            }
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
-        return String.format(url, gameId, limit);
+        return url;
     }
-    // Similar to getGameList, convert the json data returned from Twitch to a list of Item objects.
-    private List<Item> getItemList(String data) throws TwitchException {
-        ObjectMapper mapper = new ObjectMapper();
-        try{
-            return Arrays.asList(mapper.readValue(data, Item[].class));
-        } catch (JsonProcessingException e) {
+    // Similar to getGameList, returns the page of Item objects returned from Twitch for the given URL
+    private CompletableFuture<HelixPage<Item>> getItemPage(TwitchCache.Endpoint endpoint, String url) {
+        return searchTwitch(endpoint, url, EntityMapper.ITEM_READER);
+    }
+    // Returns the top x streams based on game ID.
+    private CompletableFuture<HelixPage<Item>> searchStreams(String gameId, int limit, String cursor) {
+        return getItemPage(TwitchCache.Endpoint.STREAMS, buildSearchURL(STREAM_SEARCH_URL_TEMPLATE, gameId, limit, cursor)).thenApply(this::markStreams);
+    }
+    // Returns the first page of the streams of several games, the most viewed first whatever their game.
+    private CompletableFuture<HelixPage<Item>> searchStreams(List<String> gameIds) {
+        StringBuilder url = new StringBuilder(String.format(MULTI_GAME_STREAM_SEARCH_URL_TEMPLATE, MAX_PAGE_SIZE));
+        try {
+            for (String gameId : gameIds) {
+                url.append("&game_id=").append(URLEncoder.encode(gameId, "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
-            throw new TwitchException("Failed to parse item data from Twitch API");
         }
+        return getItemPage(TwitchCache.Endpoint.STREAMS, url.toString()).thenApply(this::markStreams);
     }
-    // Returns the top x streams based on game ID.
-    private List<Item> searchStreams(String gameId, int limit) throws TwitchException {
-        List<Item> streams = getItemList(searchTwitch(buildSearchURL(STREAM_SEARCH_URL_TEMPLATE, gameId, limit)));
-        for (Item item : streams) {
+    private HelixPage<Item> markStreams(HelixPage<Item> streams) {
+        for (Item item : streams.getData()) {
             item.setType(ItemType.STREAM);
             item.setUrl(TWITCH_BASE_URL + item.getBroadcasterName());//stream has no url
         }
         return streams;
     }
     // Returns the top x clips based on game ID.
-    private List<Item> searchClips(String gameId, int limit) throws TwitchException {
-        List<Item> clips = getItemList(searchTwitch(buildSearchURL(CLIP_SEARCH_URL_TEMPLATE, gameId, limit)));
-        for (Item item : clips) {
-            item.setType(ItemType.CLIP);
-        }
-        return clips;
+    private CompletableFuture<HelixPage<Item>> searchClips(String gameId, int limit, String cursor) {
+        return getItemPage(TwitchCache.Endpoint.CLIPS, buildSearchURL(CLIP_SEARCH_URL_TEMPLATE, gameId, limit, cursor)).thenApply(clips -> {
+            for (Item item : clips.getData()) {
+                item.setType(ItemType.CLIP);
+            }
+            return clips;
+        });
     }
     // Returns the top x videos based on game ID.
-    private List<Item> searchVideos(String gameId, int limit) throws TwitchException {
-        List<Item> videos = getItemList(searchTwitch(buildSearchURL(VIDEO_SEARCH_URL_TEMPLATE, gameId, limit)));
-        for (Item item : videos) {
-            item.setType(ItemType.VIDEO);
+    private CompletableFuture<HelixPage<Item>> searchVideos(String gameId, int limit, String cursor) {
+        return getItemPage(TwitchCache.Endpoint.VIDEOS, buildSearchURL(VIDEO_SEARCH_URL_TEMPLATE, gameId, limit, cursor)).thenApply(videos -> {
+            for (Item item : videos.getData()) {
+                item.setType(ItemType.VIDEO);
+            }
+            return videos;
+        });
+    }
+    //return 分type的 Item list. Results are cached per (gameId, type, limit), the returned list must not be modified.
+    //While the circuit of the endpoint is open and nothing is cached, the list is empty.
+    public CompletableFuture<List<Item>> searchByTypeAsync(String gameId, ItemType type, int limit) {
+        return lookupByType(gameId, type, limit).exceptionally(failure -> whenCircuitOpen(failure, Collections.emptyList()));
+    }
+
+    private CompletableFuture<List<Item>> lookupByType(String gameId, ItemType type, int limit) {
+        List<Item> snapshotItems = TopGamesRefresher.getInstance().current().getItems(gameId, type, limit);
+        if (snapshotItems != null) {
+            return CompletableFuture.completedFuture(snapshotItems);
         }
-        return videos;
+        TwitchCache.Key key = new TwitchCache.Key(TwitchCache.Endpoint.of(type), gameId, type, limit);
+        return CACHE.getAsync(key, () -> fetchByTypeAsync(gameId, type, limit));
     }
-    //return 分type的 Item list
-    public List<Item> searchByType(String gameId, ItemType type, int limit) throws TwitchException {
-        List<Item> items = Collections.emptyList();
+
+    // Fallback of a lookup whose circuit is open, any other failure is passed on
+    private static <T> T whenCircuitOpen(Throwable failure, T fallback) {
+        Throwable cause = TwitchCache.unwrap(failure);
+        if (cause instanceof TwitchCircuitOpenException) {
+            return fallback;
+        }
+        throw cause instanceof RuntimeException ? (RuntimeException) cause : new TwitchException("Failed to get result from Twitch API");
+    }
+
+    // Returns the items of one type for each of the games, keyed by game id in the order of gameIds, with up to perGameLimit items per game.
+    // Helix only takes several game_id parameters on /streams. The streams of the games that are not cached are fetched with one request
+    // per MAX_GAMES_PER_REQUEST games and split by game, and each game is cached as if it was looked up by searchByTypeAsync.
+    // The batched request does not go through TwitchCache.getAsync(): it is not shared with concurrent callers, and a game whose
+    // entry is stale is fetched again with the batch instead of being served stale while it refreshes.
+    public CompletableFuture<Map<String, List<Item>>> searchByTypeForGamesAsync(List<String> gameIds, ItemType type, int perGameLimit) {
+        if (type != ItemType.STREAM) {
+            return searchEachGame(gameIds, type, perGameLimit);
+        }
+        Map<String, List<Item>> itemsByGame = new LinkedHashMap<>();
+        List<String> uncachedGameIds = new ArrayList<>();
+        for (String gameId : gameIds) {
+            if (itemsByGame.containsKey(gameId)) {
+                continue;
+            }
+            List<Item> items = TopGamesRefresher.getInstance().current().getItems(gameId, type, perGameLimit);
+            if (items == null) {
+                items = CACHE.getIfFresh(new TwitchCache.Key(TwitchCache.Endpoint.STREAMS, gameId, type, perGameLimit));
+            }
+            // null keeps the position of the game until its streams are fetched
+            itemsByGame.put(gameId, items);
+            if (items == null) {
+                uncachedGameIds.add(gameId);
+            }
+        }
+        List<CompletableFuture<Map<String, List<Item>>>> batches = new ArrayList<>();
+        for (int from = 0; from < uncachedGameIds.size(); from += MAX_GAMES_PER_REQUEST) {
+            List<String> batch = uncachedGameIds.subList(from, Math.min(from + MAX_GAMES_PER_REQUEST, uncachedGameIds.size()));
+            batches.add(fetchStreams(batch, perGameLimit).exceptionally(failure -> {
+                // Same fallback as searchByTypeAsync
+                Map<String, List<Item>> empty = new HashMap<>();
+                for (String gameId : whenCircuitOpen(failure, batch)) {
+                    empty.put(gameId, Collections.emptyList());
+                }
+                return empty;
+            }));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenApply(done -> {
+            for (CompletableFuture<Map<String, List<Item>>> batch : batches) {
+                itemsByGame.putAll(batch.join());
+            }
+            return itemsByGame;
+        });
+    }
+
+    // Uncached lookup of the streams of several games with one request, the results are cached per game.
+    // A game that got fewer than perGameLimit streams because the page was full is looked up on its own through the cache.
+    // These lookups run at the same time under one deadline, a game whose lookup fails keeps the streams of the batch.
+    private CompletableFuture<Map<String, List<Item>>> fetchStreams(List<String> gameIds, int perGameLimit) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEARCH_DEADLINE_MILLIS);
+        return searchStreams(gameIds).thenCompose(page -> {
+            Map<String, List<Item>> itemsByGame = new HashMap<>();
+            for (String gameId : gameIds) {
+                itemsByGame.put(gameId, new ArrayList<>());
+            }
+            for (Item item : page.getData()) {
+                List<Item> items = itemsByGame.get(item.getGameId());
+                if (items != null && items.size() < perGameLimit) {
+                    items.add(item);
+                }
+            }
+            Map<String, CompletableFuture<List<Item>>> shortGames = new HashMap<>();
+            for (String gameId : gameIds) {
+                List<Item> items = Collections.unmodifiableList(itemsByGame.get(gameId));
+                itemsByGame.put(gameId, items);
+                TwitchCache.Key key = new TwitchCache.Key(TwitchCache.Endpoint.STREAMS, gameId, ItemType.STREAM, perGameLimit);
+                // The page was full before this game got enough streams, the most viewed streams went to the other games
+                if (items.size() < perGameLimit && page.hasNext()) {
+                    // Keep the streams of the batch when the lookup fails. The failure is already counted by TwitchCache and the circuit breaker
+                    shortGames.put(gameId, CACHE.<List<Item>>getAsync(key, () -> fetchByTypeAsync(gameId, ItemType.STREAM, perGameLimit))
+                            .orTimeout(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                            .exceptionally(failure -> items));
+                } else {
+                    CACHE.put(key, items);
+                }
+            }
+            return CompletableFuture.allOf(shortGames.values().toArray(new CompletableFuture[0])).thenApply(done -> {
+                for (Map.Entry<String, CompletableFuture<List<Item>>> entry : shortGames.entrySet()) {
+                    itemsByGame.put(entry.getKey(), entry.getValue().join());
+                }
+                return itemsByGame;
+            });
+        });
+    }
+
+    // A game whose lookup fails or times out gets no items like a game without any, the lookup only fails when it failed for every game.
+    private CompletableFuture<Map<String, List<Item>>> searchEachGame(List<String> gameIds, ItemType type, int perGameLimit) {
+        // A null list is a lookup that failed
+        Map<String, CompletableFuture<List<Item>>> lookups = new LinkedHashMap<>();
+        for (String gameId : gameIds) {
+            if (!lookups.containsKey(gameId)) {
+                lookups.put(gameId, searchByTypeAsync(gameId, type, perGameLimit)
+                        .orTimeout(SEARCH_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                        .exceptionally(failure -> null));
+            }
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture[0])).thenApply(done -> {
+            Map<String, List<Item>> itemsByGame = new LinkedHashMap<>();
+            int failures = 0;
+            for (Map.Entry<String, CompletableFuture<List<Item>>> entry : lookups.entrySet()) {
+                List<Item> items = entry.getValue().join();
+                if (items == null) {
+                    failures++;
+                    items = Collections.emptyList();
+                }
+                itemsByGame.put(entry.getKey(), items);
+            }
+            if (failures > 0 && failures == lookups.size()) {
+                throw new TwitchException("Failed to get result from Twitch API");
+            }
+            return itemsByGame;
+        });
+    }
+
+    // Uncached lookup of the items of one type, used by the cache and the top games snapshot
+    CompletableFuture<List<Item>> fetchByTypeAsync(String gameId, ItemType type, int limit) {
+        return fetchPageAsync(gameId, type, limit, null).thenApply(HelixPage::getData);
+    }
+
+    // Uncached lookup of one page of items of one type, the cursor is null for the first page.
+    CompletableFuture<HelixPage<Item>> fetchPageAsync(String gameId, ItemType type, int limit, String cursor) {
+        CompletableFuture<HelixPage<Item>> page;
         switch (type) {
             case STREAM:
-                items = searchStreams(gameId, limit);
+                page = searchStreams(gameId, limit, cursor);
                 break;
             case VIDEO:
-                items = searchVideos(gameId, limit);
+                page = searchVideos(gameId, limit, cursor);
                 break;
-            case CLIP:
-                items = searchClips(gameId, limit);
+            default:
+                page = searchClips(gameId, limit, cursor);
                 break;
         }
-        // Update gameId for all items. GameId is used by recommendation function
-        for (Item item : items) {
-            item.setGameId(gameId);
-        }
-        return items;
+        return page.thenApply(items -> {
+            // Update gameId for all items. GameId is used by recommendation function
+            for (Item item : items.getData()) {
+                item.setGameId(gameId);
+            }
+            return items;
+        });
+    }
+
+    // Returns the items of one type page by page, following the Helix cursors until `limit` items were returned or there are no more pages.
+    // Up to `prefetch` pages are loaded ahead of the consumer. The loader must be closed when it is no longer used.
+    // cursor: the cursor returned with a previous page to continue from, or null to start from the first page.
+    public ItemPageLoader searchPages(String gameId, ItemType type, int limit, String cursor, int prefetch) {
+        return new ItemPageLoader(this, gameId, type, limit, cursor, prefetch);
     }
     //return {“Stream":[],"Video":[],"Clip":[]}
-    public Map<String, List<Item>> searchItems(String gameId) throws TwitchException {
-        Map<String, List<Item>> itemMap = new HashMap<>();
+    //The three lookups are sent at the same time and share one deadline. A type that fails, times out or has an open circuit
+    //gets an empty list and is reported by ItemSearchResult.getFailedTypes(), the search only fails when every type failed.
+    public CompletableFuture<ItemSearchResult> searchItemsAsync(String gameId) {
+        Map<ItemType, CompletableFuture<List<Item>>> lookups = new EnumMap<>(ItemType.class);
         for (ItemType type : ItemType.values()) {
-            itemMap.put(type.toString(),searchByType(gameId, type, DEFAULT_SEARCH_LIMIT));
+            lookups.put(type, lookupByType(gameId, type, DEFAULT_SEARCH_LIMIT).orTimeout(SEARCH_DEADLINE_MILLIS, TimeUnit.MILLISECONDS));
         }
-        return itemMap;
+        CompletableFuture<?>[] settled = lookups.values().stream().map(lookup -> lookup.handle((items, failure) -> null)).toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(settled).thenApply(done -> {
+            ItemSearchResult itemMap = new ItemSearchResult();
+            for (Map.Entry<ItemType, CompletableFuture<List<Item>>> entry : lookups.entrySet()) {
+                String type = entry.getKey().toString();
+                try {
+                    itemMap.put(type, entry.getValue().join());
+                } catch (CompletionException | CancellationException e) {
+                    Throwable cause = TwitchCache.unwrap(e);
+                    if (!(cause instanceof TimeoutException)) {
+                        cause.printStackTrace();
+                    }
+                    itemMap.markFailed(type);
+                }
+            }
+            if (itemMap.getFailedTypes().size() == ItemType.values().length) {
+                throw new TwitchException("Failed to get result from Twitch API");
+            }
+            return itemMap;
+        });
     }
 }
@@ -0,0 +1,80 @@
+package com.laioffer.jupiter.external;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process-wide non-blocking HTTP client shared by every TwitchClient instance.
+// Requests are sent with sendAsync(), so no thread waits while a Helix call is in flight: the few callback threads only run
+// the work that follows a response, e.g. decoding the body and completing the lookups and the servlet responses waiting for it.
+// Nothing run on them may block on another Twitch call. Connections are kept alive and reused, and with HTTP/2 many requests
+// share one connection. Every setting can be overridden with a system property, e.g. -Djupiter.twitch.http.requestTimeoutMillis=3000
+public class TwitchHttpClient {
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("jupiter.twitch.http.connectTimeoutMillis", 2000);
+    // From sending the request to receiving the whole response
+    private static final int REQUEST_TIMEOUT_MILLIS = Integer.getInteger("jupiter.twitch.http.requestTimeoutMillis", 5000);
+    private static final int CALLBACK_THREADS = Integer.getInteger("jupiter.twitch.http.callbackThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private static final AtomicLong REQUESTS_SENT = new AtomicLong();
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final AtomicInteger PEAK_IN_FLIGHT = new AtomicInteger();
+
+    private static final ExecutorService CALLBACKS = createCallbackExecutor();
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MILLIS))
+            .executor(CALLBACKS)
+            .build();
+
+    private TwitchHttpClient() {
+    }
+
+    public static HttpClient get() {
+        return HTTP_CLIENT;
+    }
+
+    static Duration requestTimeout() {
+        return Duration.ofMillis(REQUEST_TIMEOUT_MILLIS);
+    }
+
+    // Called by TwitchClient when it sends a request and when the request ended, whatever the outcome
+    static void onRequestSent() {
+        REQUESTS_SENT.incrementAndGet();
+        PEAK_IN_FLIGHT.accumulateAndGet(IN_FLIGHT.incrementAndGet(), Math::max);
+    }
+
+    static void onRequestEnded() {
+        IN_FLIGHT.decrementAndGet();
+    }
+
+    // Counters for monitoring, e.g. {"inFlight":3, "peakInFlight":120, "requestsSent":5000, "callbackThreads":4}
+    public static Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("inFlight", (long) IN_FLIGHT.get());
+        stats.put("peakInFlight", (long) PEAK_IN_FLIGHT.get());
+        stats.put("requestsSent", REQUESTS_SENT.get());
+        stats.put("callbackThreads", (long) CALLBACK_THREADS);
+        return stats;
+    }
+
+    // Stop the callback threads. Called when the web application is stopped, the connections are closed once idle.
+    public static void shutdown() {
+        CALLBACKS.shutdownNow();
+    }
+
+    private static ExecutorService createCallbackExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "twitch-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(CALLBACK_THREADS, threadFactory);
+    }
+}
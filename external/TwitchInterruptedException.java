@@ -0,0 +1,9 @@
+package com.laioffer.jupiter.external;
+
+// Thrown when the caller stopped waiting for a Twitch call, e.g. its thread was interrupted because its future was cancelled,
+// or its request was aborted. It tells nothing about the health of the endpoint.
+public class TwitchInterruptedException extends TwitchException {
+    public TwitchInterruptedException(String errorMessage) {
+        super(errorMessage);
+    }
+}
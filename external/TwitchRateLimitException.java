@@ -0,0 +1,9 @@
+package com.laioffer.jupiter.external;
+
+// Thrown when a Twitch call is not sent because the Helix rate limit budget would not allow it in time,
+// or when Twitch answered 429 Too Many Requests.
+public class TwitchRateLimitException extends TwitchException {
+    public TwitchRateLimitException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -0,0 +1,289 @@
+package com.laioffer.jupiter.external;
+
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Schedules the Helix calls of the process within the rate limit of the client id.
+// - The budget is learned from the Ratelimit-Limit, Ratelimit-Remaining and Ratelimit-Reset headers of every response,
+//   and a call is only sent when the budget has a point left, so calls that would get 429 are not sent at all.
+// - When less than PACING_THRESHOLD of the budget is left, the remaining points are spread evenly until the reset
+//   instead of being spent in one burst.
+// - Waiting calls are served by priority: user-facing calls before background refreshes, then in arrival order.
+// - A call fails fast with TwitchRateLimitException when it could not be sent within the maximum wait of its priority.
+// - No thread waits for the budget: acquire() returns a permit that a later pass completes, e.g. at the next pacing slot.
+public class TwitchRateLimiter {
+    // Helix allows 800 points per minute by default, used until the first response tells the real limit
+    private static final int DEFAULT_LIMIT = Integer.getInteger("jupiter.twitch.rateLimit.defaultLimit", 800);
+    private static final double PACING_THRESHOLD = 0.2;
+    // Wait used after a 429 without a usable Ratelimit-Reset header
+    private static final long DEFAULT_BACKOFF_MILLIS = 1000;
+    // Not defined by java.net.HttpURLConnection
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    public enum Priority {
+        INTERACTIVE(Long.getLong("jupiter.twitch.rateLimit.interactiveMaxWaitMillis", 1000)),
+        BACKGROUND(Long.getLong("jupiter.twitch.rateLimit.backgroundMaxWaitMillis", 30_000));
+
+        private final long maxWaitMillis;
+
+        Priority(long maxWaitMillis) {
+            this.maxWaitMillis = maxWaitMillis;
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final Priority priority;
+        private final long sequence;
+        private final long deadline;
+        private final CompletableFuture<Void> permit = new CompletableFuture<>();
+        // Not served by the first pass
+        private boolean waited;
+
+        Waiter(Priority priority, long sequence, long deadline) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final TwitchRateLimiter INSTANCE = new TwitchRateLimiter();
+
+    // Runs the passes over the waiters that are due at a later time, e.g. at the next pacing slot or the reset
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "twitch-rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // All fields below are guarded by this
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private long sequence;
+    private int limit = DEFAULT_LIMIT;
+    // Calls that may still be sent before resetAt
+    private int available = DEFAULT_LIMIT;
+    // Epoch millis when the bucket is full again, 0 while unknown
+    private long resetAt;
+    // Earliest time of the next call while pacing
+    private long nextSendAt;
+    private int inFlight;
+    private ScheduledFuture<?> nextPass;
+    private long nextPassAt;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+
+    TwitchRateLimiter() {
+    }
+
+    public static TwitchRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    // Ask for a point of the budget without blocking. The future completes when the call may be sent, or fails with
+    // TwitchRateLimitException when it could not be sent within the maximum wait of its priority. Cancelling the future
+    // gives up the wait. Every completed permit must be followed by onResponse() or release().
+    public CompletableFuture<Void> acquire(Priority priority) {
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(priority, sequence++, System.currentTimeMillis() + priority.maxWaitMillis);
+            waiters.add(waiter);
+        }
+        pass();
+        return waiter.permit;
+    }
+
+    // Hand out the available points to the waiters in priority order, reject the waiters that cannot be served before
+    // their deadline and schedule the next pass for when the first remaining waiter is due.
+    // The permits are completed outside the lock, their callbacks send the calls.
+    private void pass() {
+        List<Waiter> granted = new ArrayList<>();
+        List<Waiter> expired = new ArrayList<>();
+        long retryAfter = 0;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            refill(now);
+            while (!waiters.isEmpty()) {
+                Waiter head = waiters.peek();
+                if (head.permit.isDone()) {
+                    // Cancelled by the caller
+                    waiters.poll();
+                } else if (estimateReadyAt(now, 0) <= now) {
+                    waiters.poll();
+                    take(now);
+                    granted.add(head);
+                } else {
+                    break;
+                }
+            }
+            if (!waiters.isEmpty()) {
+                List<Waiter> ordered = new ArrayList<>(waiters);
+                Collections.sort(ordered);
+                int ahead = 0;
+                long wakeUpAt = estimateReadyAt(now, 0);
+                for (Waiter waiter : ordered) {
+                    long readyAt = estimateReadyAt(now, ahead);
+                    if (waiter.permit.isDone()) {
+                        waiters.remove(waiter);
+                    } else if (readyAt > waiter.deadline || now >= waiter.deadline) {
+                        waiters.remove(waiter);
+                        expired.add(waiter);
+                        retryAfter = Math.max(retryAfter, readyAt - now);
+                    } else {
+                        waiter.waited = true;
+                        wakeUpAt = Math.min(wakeUpAt, waiter.deadline);
+                        ahead++;
+                    }
+                }
+                if (!waiters.isEmpty()) {
+                    schedulePass(now, Math.max(now + 1, wakeUpAt));
+                }
+            }
+        }
+        for (Waiter waiter : granted) {
+            if (waiter.waited) {
+                delayed.incrementAndGet();
+            }
+            if (!waiter.permit.complete(null)) {
+                // Cancelled meanwhile, the call is not sent
+                release();
+            }
+        }
+        for (Waiter waiter : expired) {
+            rejected.incrementAndGet();
+            waiter.permit.completeExceptionally(new TwitchRateLimitException("Twitch API rate limit budget exhausted, retry after " + retryAfter + " ms"));
+        }
+    }
+
+    // Keep a single pending pass, the earliest one. Must hold the lock
+    private void schedulePass(long now, long at) {
+        if (nextPass != null && !nextPass.isDone() && nextPassAt <= at) {
+            return;
+        }
+        if (nextPass != null) {
+            nextPass.cancel(false);
+        }
+        nextPassAt = at;
+        nextPass = timer.schedule(this::pass, at - now, TimeUnit.MILLISECONDS);
+    }
+
+    // When the call after `ahead` other waiting calls can be sent. Must hold the lock
+    private long estimateReadyAt(long now, int ahead) {
+        if (available <= ahead) {
+            return resetAt > now ? resetAt : now + DEFAULT_BACKOFF_MILLIS;
+        }
+        return Math.max(now, nextSendAt) + ahead * pacingInterval(now);
+    }
+
+    private long pacingInterval(long now) {
+        if (resetAt <= now || available >= limit * PACING_THRESHOLD) {
+            return 0;
+        }
+        return (resetAt - now) / Math.max(1, available);
+    }
+
+    private void take(long now) {
+        long interval = pacingInterval(now);
+        available--;
+        inFlight++;
+        nextSendAt = now + interval;
+    }
+
+    // The bucket is full again after the reset, until a response tells otherwise
+    private void refill(long now) {
+        if (resetAt != 0 && now >= resetAt) {
+            available = Math.max(0, limit - inFlight);
+            resetAt = 0;
+            nextSendAt = 0;
+        }
+    }
+
+    // Update the budget from the status and the rate limit headers of a Helix response
+    public void onResponse(int statusCode, HttpHeaders headers) {
+        Integer headerLimit = intHeader(headers, "Ratelimit-Limit");
+        Integer remaining = intHeader(headers, "Ratelimit-Remaining");
+        Integer reset = intHeader(headers, "Ratelimit-Reset");
+        boolean tooManyRequests = statusCode == SC_TOO_MANY_REQUESTS;
+        if (tooManyRequests) {
+            throttled.incrementAndGet();
+        }
+        synchronized (this) {
+            inFlight = Math.max(0, inFlight - 1);
+            long now = System.currentTimeMillis();
+            if (headerLimit != null) {
+                limit = headerLimit;
+            }
+            long newResetAt = reset != null ? reset * 1000L : 0;
+            if (tooManyRequests) {
+                available = 0;
+                resetAt = newResetAt > now ? newResetAt : now + DEFAULT_BACKOFF_MILLIS;
+            } else if (remaining != null && newResetAt > 0) {
+                // Calls still in flight are not counted by Twitch yet
+                int estimate = Math.max(0, remaining - inFlight);
+                // A later reset means a new window, within the same window the budget only goes down
+                available = newResetAt > resetAt ? estimate : Math.min(available, estimate);
+                resetAt = Math.max(resetAt, newResetAt);
+            }
+        }
+        pass();
+    }
+
+    // Give the point back when the call failed before a response arrived, e.g. on a connection error
+    public void release() {
+        synchronized (this) {
+            inFlight = Math.max(0, inFlight - 1);
+        }
+        pass();
+    }
+
+    private static Integer intHeader(HttpHeaders headers, String name) {
+        Optional<String> value = headers.firstValue(name);
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value.get().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // e.g. {"limit":800, "available":640, "resetInMillis":12000, "waiting":0, "inFlight":3, "throttled":0, "rejected":2, "delayed":40}
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("limit", (long) limit);
+            stats.put("available", (long) available);
+            stats.put("resetInMillis", resetAt == 0 ? 0 : Math.max(0, resetAt - System.currentTimeMillis()));
+            stats.put("waiting", (long) waiters.size());
+            stats.put("inFlight", (long) inFlight);
+        }
+        stats.put("throttled", throttled.get());
+        stats.put("rejected", rejected.get());
+        stats.put("delayed", delayed.get());
+        return stats;
+    }
+
+    // Stop the timer thread. Called when the web application is stopped
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
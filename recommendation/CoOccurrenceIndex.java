@@ -0,0 +1,477 @@
+package com.laioffer.jupiter.recommendation;
+
+import com.laioffer.jupiter.collection.IdDictionary;
+import com.laioffer.jupiter.db.FavoriteCache;
+import com.laioffer.jupiter.db.FavoriteChangeListener;
+import com.laioffer.jupiter.db.MySQLConnection;
+import com.laioffer.jupiter.db.MySQLException;
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Item-to-item and game-to-game co-occurrence of the favorites of all users, for the co-occurrence mode of ItemRecommender.
+// Two items co-occur once for every user who has both as favorites, two games once for every user who has favorite items of both.
+// - The matrices are built from favorite_records in parallel at startup and every REBUILD_INTERVAL_MILLIS, and are kept up to date
+//   in between by the favorite changes committed on this node. Changes committed on other nodes are picked up by the next rebuild.
+// - Each row keeps its MAX_NEIGHBORS strongest neighbors, see CoOccurrenceMatrix, so a recommendation is a merge of a few short
+//   local rows without any Twitch or MySQL call.
+// - Users with more than MAX_ITEMS_PER_USER favorites are left out of the pairs: a very large favorite list says little about
+//   which items go together and costs the square of its size.
+// Run CoOccurrenceIndexBenchmark to measure the build and the lookups on synthetic favorites.
+public class CoOccurrenceIndex implements FavoriteChangeListener {
+    private static final int MAX_NEIGHBORS = Integer.getInteger("jupiter.cooccurrence.maxNeighbors", 50);
+    private static final int MAX_ITEMS_PER_USER = Integer.getInteger("jupiter.cooccurrence.maxItemsPerUser", 200);
+    static final int BUILD_THREADS = Integer.getInteger("jupiter.cooccurrence.buildThreads", Runtime.getRuntime().availableProcessors());
+    private static final long REBUILD_INTERVAL_MILLIS = Long.getLong("jupiter.cooccurrence.rebuildMillis", 3_600_000);
+
+    private static final int[] NO_CODES = new int[0];
+
+    private static final CoOccurrenceIndex INSTANCE = new CoOccurrenceIndex();
+
+    interface FavoriteSource {
+        void forEach(BiConsumer<String, Item> consumer) throws MySQLException;
+    }
+
+    // The favorites and the matrices built from them, only used under the lock of the index
+    private static final class State {
+        private final IdDictionary itemIds = new IdDictionary();
+        private final IdDictionary gameIds = new IdDictionary();
+        private final IdDictionary userIds = new IdDictionary();
+        // item code -> item, and -> game code
+        private Item[] items = new Item[1024];
+        private int[] itemGames = new int[1024];
+        // user code -> every favorite item code of the user
+        private int[][] userItems = new int[1024][];
+        // Used while the favorites are loaded: how many codes of userItems[user] are set
+        private int[] userItemCounts = new int[1024];
+        private CoOccurrenceMatrix itemMatrix;
+        private CoOccurrenceMatrix gameMatrix;
+        private long favorites;
+
+        private int encodeItem(Item item) {
+            int code = itemIds.encode(item.getId());
+            if (code >= items.length) {
+                items = Arrays.copyOf(items, Math.max(code + 1, items.length * 2));
+                itemGames = Arrays.copyOf(itemGames, items.length);
+            }
+            if (items[code] == null) {
+                items[code] = item;
+                itemGames[code] = gameIds.encode(item.getGameId() == null ? "" : item.getGameId());
+            }
+            return code;
+        }
+
+        private int encodeUser(String userId) {
+            int code = userIds.encode(userId);
+            if (code >= userItems.length) {
+                userItems = Arrays.copyOf(userItems, Math.max(code + 1, userItems.length * 2));
+                userItemCounts = Arrays.copyOf(userItemCounts, userItems.length);
+            }
+            return code;
+        }
+
+        private void append(int user, int code) {
+            int[] codes = userItems[user];
+            int count = userItemCounts[user];
+            if (codes == null) {
+                codes = userItems[user] = new int[4];
+            } else if (count == codes.length) {
+                codes = userItems[user] = Arrays.copyOf(codes, count * 2);
+            }
+            codes[count] = code;
+            userItemCounts[user] = count + 1;
+            favorites++;
+        }
+
+        private void trim() {
+            for (int user = 0; user < userItems.length; user++) {
+                if (userItems[user] != null) {
+                    userItems[user] = Arrays.copyOf(userItems[user], userItemCounts[user]);
+                }
+            }
+            userItemCounts = null;
+        }
+
+        private int[] itemsOf(int user) {
+            return user < 0 || user >= userItems.length || userItems[user] == null ? NO_CODES : userItems[user];
+        }
+
+        // The game codes of the items, each once
+        private int[] distinctGames(int[] itemCodes) {
+            int[] games = new int[itemCodes.length];
+            for (int i = 0; i < itemCodes.length; i++) {
+                games[i] = itemGames[itemCodes[i]];
+            }
+            Arrays.sort(games);
+            int distinct = 0;
+            for (int i = 0; i < games.length; i++) {
+                if (i == 0 || games[i] != games[i - 1]) {
+                    games[distinct++] = games[i];
+                }
+            }
+            return Arrays.copyOf(games, distinct);
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by lock, null until the first build
+    private State state;
+    // Guarded by lock, the changes to replay on the state being built, null when no build runs
+    private List<Consumer<State>> pendingChanges;
+    private ScheduledExecutorService scheduler;
+    private volatile long lastBuildMillis = -1;
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong buildFailures = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+
+    CoOccurrenceIndex() {
+    }
+
+    public static CoOccurrenceIndex getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        FavoriteCache.getInstance().addChangeListener(this);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cooccurrence-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::rebuild, 0, REBUILD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    // False until the first build finished, the recommendation falls back to the game mode until then
+    public boolean isReady() {
+        lock.readLock().lock();
+        try {
+            return state != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void rebuild() {
+        rebuild(consumer -> {
+            MySQLConnection connection = null;
+            try {
+                connection = new MySQLConnection();
+                connection.forEachFavoriteRecord(consumer);
+            } finally {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    // Build a new state from the source and swap it in. The changes committed while it is built are replayed on it:
+    // adding a favorite the source already had, or removing one it did not have, is a no-op.
+    void rebuild(FavoriteSource source) {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            pendingChanges = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        State built = null;
+        try {
+            built = build(source, BUILD_THREADS);
+            builds.incrementAndGet();
+            lastBuildMillis = System.currentTimeMillis() - start;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // e.g. MySQLException, keep serving the last state
+            e.printStackTrace();
+            buildFailures.incrementAndGet();
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (built != null) {
+                    for (Consumer<State> change : pendingChanges) {
+                        change.accept(built);
+                    }
+                    state = built;
+                }
+                pendingChanges = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static State build(FavoriteSource source, int threads) throws MySQLException, InterruptedException {
+        State built = new State();
+        source.forEach((userId, item) -> built.append(built.encodeUser(userId), built.encodeItem(item)));
+        built.trim();
+        int userCount = built.userIds.size();
+        int[][] itemGroups = new int[userCount][];
+        int[][] gameGroups = new int[userCount][];
+        for (int user = 0; user < userCount; user++) {
+            int[] itemCodes = built.itemsOf(user);
+            boolean counted = itemCodes.length <= MAX_ITEMS_PER_USER;
+            itemGroups[user] = counted ? itemCodes : NO_CODES;
+            gameGroups[user] = counted ? built.distinctGames(itemCodes) : NO_CODES;
+        }
+        built.itemMatrix = CoOccurrenceMatrix.build(itemGroups, invert(itemGroups, built.itemIds.size()), MAX_NEIGHBORS, threads);
+        built.gameMatrix = CoOccurrenceMatrix.build(gameGroups, invert(gameGroups, built.gameIds.size()), MAX_NEIGHBORS, threads);
+        return built;
+    }
+
+    // groups[g] = codes of group g -> result[c] = groups containing code c
+    private static int[][] invert(int[][] groups, int codeCount) {
+        int[] sizes = new int[codeCount];
+        for (int[] group : groups) {
+            for (int code : group) {
+                sizes[code]++;
+            }
+        }
+        int[][] groupsOfCode = new int[codeCount][];
+        for (int code = 0; code < codeCount; code++) {
+            groupsOfCode[code] = new int[sizes[code]];
+            sizes[code] = 0;
+        }
+        for (int group = 0; group < groups.length; group++) {
+            for (int code : groups[group]) {
+                groupsOfCode[code][sizes[code]++] = group;
+            }
+        }
+        return groupsOfCode;
+    }
+
+    @Override
+    public void favoriteAdded(String userId, Item item) {
+        change(current -> add(current, userId, item));
+    }
+
+    @Override
+    public void favoriteRemoved(String userId, String itemId) {
+        change(current -> remove(current, userId, itemId));
+    }
+
+    private void change(Consumer<State> change) {
+        lock.writeLock().lock();
+        try {
+            if (state != null) {
+                change.accept(state);
+            }
+            if (pendingChanges != null) {
+                pendingChanges.add(change);
+            }
+            updates.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void add(State current, String userId, Item item) {
+        int user = current.encodeUser(userId);
+        int code = current.encodeItem(item);
+        int[] before = current.itemsOf(user);
+        for (int other : before) {
+            if (other == code) {
+                return;
+            }
+        }
+        int[] after = Arrays.copyOf(before, before.length + 1);
+        after[before.length] = code;
+        current.userItems[user] = after;
+        current.favorites++;
+        if (after.length <= MAX_ITEMS_PER_USER) {
+            pair(current, code, before, 1);
+        } else if (before.length == MAX_ITEMS_PER_USER) {
+            // The user has too many favorites from now on
+            count(current, before, -1);
+        }
+    }
+
+    private static void remove(State current, String userId, String itemId) {
+        int user = current.userIds.find(userId);
+        int code = current.itemIds.find(itemId);
+        int[] before = current.itemsOf(user);
+        int position = -1;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] == code) {
+                position = i;
+            }
+        }
+        if (code < 0 || position < 0) {
+            return;
+        }
+        int[] after = new int[before.length - 1];
+        System.arraycopy(before, 0, after, 0, position);
+        System.arraycopy(before, position + 1, after, position, after.length - position);
+        current.userItems[user] = after;
+        current.favorites--;
+        if (before.length <= MAX_ITEMS_PER_USER) {
+            pair(current, code, after, -1);
+        } else if (after.length == MAX_ITEMS_PER_USER) {
+            // The user has few enough favorites again
+            count(current, after, 1);
+        }
+    }
+
+    // Add delta to the pairs of the item with the other favorites of the user, and of its game with their games
+    private static void pair(State current, int code, int[] others, int delta) {
+        current.itemMatrix.addOccurrence(code, delta);
+        for (int other : others) {
+            current.itemMatrix.add(code, other, delta);
+            current.itemMatrix.add(other, code, delta);
+        }
+        int game = current.itemGames[code];
+        for (int other : others) {
+            if (current.itemGames[other] == game) {
+                // The user already had this game
+                return;
+            }
+        }
+        current.gameMatrix.addOccurrence(game, delta);
+        for (int otherGame : current.distinctGames(others)) {
+            current.gameMatrix.add(game, otherGame, delta);
+            current.gameMatrix.add(otherGame, game, delta);
+        }
+    }
+
+    // Add delta to every pair of the favorites of one user
+    private static void count(State current, int[] itemCodes, int delta) {
+        addAllPairs(current.itemMatrix, itemCodes, delta);
+        addAllPairs(current.gameMatrix, current.distinctGames(itemCodes), delta);
+    }
+
+    private static void addAllPairs(CoOccurrenceMatrix matrix, int[] codes, int delta) {
+        for (int i = 0; i < codes.length; i++) {
+            matrix.addOccurrence(codes[i], delta);
+            for (int j = i + 1; j < codes.length; j++) {
+                matrix.add(codes[i], codes[j], delta);
+                matrix.add(codes[j], codes[i], delta);
+            }
+        }
+    }
+
+    // Return up to limit items of each type that co-occur the most with the favorite items, best first.
+    // The score of a candidate c is the sum over the favorites f of count(f, c) / sqrt(occurrences(f) * occurrences(c)).
+    // excluded: tells which items must not be recommended, e.g. the favorites themselves.
+    public Map<ItemType, List<Item>> recommend(Collection<String> favoriteItemIds, int limit, Predicate<String> excluded) {
+        Map<ItemType, List<Item>> itemsByType = new EnumMap<>(ItemType.class);
+        for (ItemType type : ItemType.values()) {
+            itemsByType.put(type, new ArrayList<>());
+        }
+        lock.readLock().lock();
+        try {
+            if (state == null) {
+                return itemsByType;
+            }
+            int full = 0;
+            for (int code : rank(state.itemMatrix, encode(state.itemIds, favoriteItemIds))) {
+                Item item = state.items[code];
+                List<Item> items = itemsByType.get(item.getType());
+                if (items == null || items.size() == limit || excluded.test(item.getId())) {
+                    continue;
+                }
+                items.add(item);
+                if (items.size() == limit && ++full == itemsByType.size()) {
+                    break;
+                }
+            }
+            return itemsByType;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Return up to limit games, other than the given ones, that co-occur the most with them, best first
+    public List<String> relatedGames(Collection<String> gameIds, int limit) {
+        List<String> related = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (state == null) {
+                return related;
+            }
+            Set<String> given = new HashSet<>(gameIds);
+            for (int code : rank(state.gameMatrix, encode(state.gameIds, gameIds))) {
+                String gameId = state.gameIds.decode(code);
+                if (related.size() == limit) {
+                    break;
+                }
+                if (!given.contains(gameId) && !gameId.isEmpty()) {
+                    related.add(gameId);
+                }
+            }
+            return related;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int[] encode(IdDictionary dictionary, Collection<String> ids) {
+        int[] codes = new int[ids.size()];
+        int count = 0;
+        for (String id : ids) {
+            int code = dictionary.find(id);
+            if (code >= 0) {
+                codes[count++] = code;
+            }
+        }
+        return Arrays.copyOf(codes, count);
+    }
+
+    // Merge the rows of the codes into one score per neighbor, and return the neighbors by score descending
+    private static List<Integer> rank(CoOccurrenceMatrix matrix, int[] codes) {
+        Map<Integer, Double> scores = new HashMap<>();
+        for (int code : codes) {
+            double occurrences = Math.max(1, matrix.occurrences(code));
+            matrix.forEachNeighbor(code, (neighbor, count) ->
+                    scores.merge(neighbor, count / Math.sqrt(occurrences * Math.max(1, matrix.occurrences(neighbor))), Double::sum));
+        }
+        List<Integer> ranked = new ArrayList<>(scores.keySet());
+        ranked.sort(Comparator.<Integer>comparingDouble(scores::get).reversed().thenComparingInt(code -> code));
+        return ranked;
+    }
+
+    // e.g. {"ready":true, "users":50000, "items":120000, "games":2000, "favorites":1000000, "itemNeighbors":6000000, "gameNeighbors":90000,
+    //       "estimatedBytes":52000000, "lastBuildMillis":3500, "builds":1, "buildFailures":0, "updates":42}
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            stats.put("ready", state != null);
+            if (state != null) {
+                stats.put("users", state.userIds.size());
+                stats.put("items", state.itemIds.size());
+                stats.put("games", state.gameIds.size());
+                stats.put("favorites", state.favorites);
+                stats.put("itemNeighbors", state.itemMatrix.entryCount());
+                stats.put("gameNeighbors", state.gameMatrix.entryCount());
+                stats.put("estimatedBytes", state.itemMatrix.estimatedBytes() + state.gameMatrix.estimatedBytes() + state.favorites * 4);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        stats.put("lastBuildMillis", lastBuildMillis);
+        stats.put("builds", builds.get());
+        stats.put("buildFailures", buildFailures.get());
+        stats.put("updates", updates.get());
+        return stats;
+    }
+}
@@ -0,0 +1,210 @@
+package com.laioffer.jupiter.recommendation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sparse co-occurrence counts between dense int codes, e.g. how many users have both item a and item b as favorites.
+// Each row keeps at most 2 * maxNeighbors entries. A full row is pruned back to its maxNeighbors strongest entries, so the
+// memory is bounded by codes * 2 * maxNeighbors whatever the number of favorites. A pair dropped by the pruning starts again
+// from its next increment, so the counts of the weak pairs are approximate. Not thread safe.
+class CoOccurrenceMatrix {
+    interface Visitor {
+        void visit(int code, int count);
+    }
+
+    private static final int[] EMPTY = new int[0];
+    // Rows built in one task of the parallel build
+    private static final int BUILD_CHUNK = 1024;
+
+    private final int maxNeighbors;
+    private int[][] keys = new int[0][];
+    private int[][] counts = new int[0][];
+    private int[] sizes = new int[0];
+    // The diagonal: how many groups, e.g. users, contain the code
+    private int[] occurrences = new int[0];
+
+    CoOccurrenceMatrix(int maxNeighbors) {
+        this.maxNeighbors = maxNeighbors;
+    }
+
+    // Count every pair of codes sharing a group, in parallel over the rows.
+    // groups[g]: the distinct codes of group g, e.g. the items of a user. groupsOfCode[c]: the groups containing code c.
+    static CoOccurrenceMatrix build(int[][] groups, int[][] groupsOfCode, int maxNeighbors, int threads) throws InterruptedException {
+        int codeCount = groupsOfCode.length;
+        CoOccurrenceMatrix matrix = new CoOccurrenceMatrix(maxNeighbors);
+        matrix.ensureCapacity(codeCount);
+        AtomicInteger nextChunk = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cooccurrence-build");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(executor.submit(() -> {
+                    // Dense counts of the row being built, only the touched codes are reset afterwards
+                    int[] rowCounts = new int[codeCount];
+                    int[] touched = new int[codeCount];
+                    long[] ranked = new long[codeCount];
+                    int from;
+                    while ((from = nextChunk.getAndAdd(BUILD_CHUNK)) < codeCount) {
+                        for (int code = from; code < Math.min(from + BUILD_CHUNK, codeCount); code++) {
+                            matrix.buildRow(code, groups, groupsOfCode[code], rowCounts, touched, ranked);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build co-occurrence matrix", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return matrix;
+    }
+
+    // Each thread writes its own rows only
+    private void buildRow(int code, int[][] groups, int[] groupsOfThisCode, int[] rowCounts, int[] touched, long[] ranked) {
+        int touchedCount = 0;
+        for (int group : groupsOfThisCode) {
+            for (int other : groups[group]) {
+                if (other != code && rowCounts[other]++ == 0) {
+                    touched[touchedCount++] = other;
+                }
+            }
+        }
+        occurrences[code] = groupsOfThisCode.length;
+        for (int i = 0; i < touchedCount; i++) {
+            ranked[i] = rank(touched[i], rowCounts[touched[i]]);
+            rowCounts[touched[i]] = 0;
+        }
+        keepStrongest(code, ranked, touchedCount);
+    }
+
+    // Sorts ascending as count descending, then code ascending
+    private static long rank(int code, int count) {
+        return ((long) -count << 32) | code;
+    }
+
+    // Replace the row with the maxNeighbors strongest of the ranked entries
+    private void keepStrongest(int code, long[] ranked, int size) {
+        Arrays.sort(ranked, 0, size);
+        int kept = Math.min(size, maxNeighbors);
+        int[] rowKeys = kept == 0 ? EMPTY : new int[kept];
+        int[] rowCounts = kept == 0 ? EMPTY : new int[kept];
+        for (int i = 0; i < kept; i++) {
+            rowKeys[i] = (int) ranked[i];
+            rowCounts[i] = -(int) (ranked[i] >> 32);
+        }
+        keys[code] = rowKeys;
+        counts[code] = rowCounts;
+        sizes[code] = kept;
+    }
+
+    void ensureCapacity(int codeCount) {
+        if (codeCount <= sizes.length) {
+            return;
+        }
+        int capacity = Math.max(codeCount, sizes.length * 2);
+        int oldCapacity = sizes.length;
+        keys = Arrays.copyOf(keys, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        occurrences = Arrays.copyOf(occurrences, capacity);
+        for (int i = oldCapacity; i < capacity; i++) {
+            keys[i] = EMPTY;
+            counts[i] = EMPTY;
+        }
+    }
+
+    void addOccurrence(int code, int delta) {
+        ensureCapacity(code + 1);
+        occurrences[code] = Math.max(0, occurrences[code] + delta);
+    }
+
+    int occurrences(int code) {
+        return code < occurrences.length ? occurrences[code] : 0;
+    }
+
+    // Add delta to the count of b in the row of a. The caller updates the row of b as well.
+    void add(int a, int b, int delta) {
+        ensureCapacity(Math.max(a, b) + 1);
+        int[] rowKeys = keys[a];
+        int size = sizes[a];
+        for (int i = 0; i < size; i++) {
+            if (rowKeys[i] == b) {
+                counts[a][i] += delta;
+                if (counts[a][i] <= 0) {
+                    // Move the last entry into the hole
+                    rowKeys[i] = rowKeys[size - 1];
+                    counts[a][i] = counts[a][size - 1];
+                    sizes[a] = size - 1;
+                }
+                return;
+            }
+        }
+        if (delta <= 0) {
+            // Never counted or pruned
+            return;
+        }
+        if (size == rowKeys.length) {
+            if (size >= 2 * maxNeighbors) {
+                prune(a);
+                size = sizes[a];
+            }
+            int capacity = Math.min(Math.max(4, size * 2), 2 * maxNeighbors);
+            keys[a] = Arrays.copyOf(keys[a], capacity);
+            counts[a] = Arrays.copyOf(counts[a], capacity);
+        }
+        keys[a][size] = b;
+        counts[a][size] = delta;
+        sizes[a] = size + 1;
+    }
+
+    private void prune(int code) {
+        int size = sizes[code];
+        long[] ranked = new long[size];
+        for (int i = 0; i < size; i++) {
+            ranked[i] = rank(keys[code][i], counts[code][i]);
+        }
+        keepStrongest(code, ranked, size);
+    }
+
+    // Visit the entries of the row, in no particular order
+    void forEachNeighbor(int code, Visitor visitor) {
+        if (code >= sizes.length) {
+            return;
+        }
+        int[] rowKeys = keys[code];
+        int[] rowCounts = counts[code];
+        for (int i = 0; i < sizes[code]; i++) {
+            visitor.visit(rowKeys[i], rowCounts[i]);
+        }
+    }
+
+    long entryCount() {
+        long entries = 0;
+        for (int size : sizes) {
+            entries += size;
+        }
+        return entries;
+    }
+
+    // Two int arrays per row plus the row headers
+    long estimatedBytes() {
+        long bytes = sizes.length * 40L;
+        for (int[] rowKeys : keys) {
+            bytes += rowKeys.length * 8L;
+        }
+        return bytes;
+    }
+}
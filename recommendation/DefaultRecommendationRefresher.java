@@ -0,0 +1,81 @@
+package com.laioffer.jupiter.recommendation;
+
+import com.laioffer.jupiter.entity.EntityMapper;
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.external.TwitchClient;
+import com.laioffer.jupiter.external.TwitchRateLimiter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The default recommendation is the same for every anonymous visitor, so it is computed on a schedule
+// instead of once per request. The last good snapshot keeps being served when a refresh fails.
+public class DefaultRecommendationRefresher {
+    private static final long REFRESH_INTERVAL_MILLIS = Long.getLong("jupiter.recommendation.default.refreshMillis", 30_000);
+
+    private static final DefaultRecommendationRefresher INSTANCE = new DefaultRecommendationRefresher();
+
+    private volatile DefaultRecommendationSnapshot snapshot;
+    private final AtomicLong failureCount = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    private DefaultRecommendationRefresher() {
+    }
+
+    public static DefaultRecommendationRefresher getInstance() {
+        return INSTANCE;
+    }
+
+    // Returns null until the first refresh succeeded
+    public DefaultRecommendationSnapshot current() {
+        return snapshot;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "default-recommendation-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    // The refresher thread waits for the recommendation, the requests never do
+    void refresh() {
+        try {
+            Map<String, List<Item>> recommendation = new ItemRecommender(new TwitchClient(TwitchRateLimiter.Priority.BACKGROUND))
+                    .recommendItemByDefaultAsync().get(REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            byte[] json = EntityMapper.ITEM_MAP_WRITER.writeValueAsBytes(recommendation);
+            snapshot = new DefaultRecommendationSnapshot(json, System.currentTimeMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+            failureCount.incrementAndGet();
+        }
+    }
+
+    // Counters for monitoring, e.g. {"ageMillis":1200, "failureCount":0}. ageMillis is -1 before the first successful refresh.
+    public Map<String, Long> getStats() {
+        DefaultRecommendationSnapshot current = snapshot;
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("ageMillis", current == null ? -1 : System.currentTimeMillis() - current.getCreatedAt());
+        stats.put("failureCount", failureCount.get());
+        return stats;
+    }
+}
@@ -0,0 +1,56 @@
+package com.laioffer.jupiter.recommendation;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+// The recommendation for logged-out users, serialized once and kept as ready-to-send UTF-8 JSON bytes,
+// together with its gzip-compressed variant and an ETag derived from the content for each of them.
+public class DefaultRecommendationSnapshot {
+    private final byte[] json;
+    private final byte[] gzippedJson;
+    private final String etag;
+    private final String gzippedEtag;
+    private final long createdAt;
+
+    DefaultRecommendationSnapshot(byte[] json, long createdAt) throws IOException {
+        this.json = json;
+        this.gzippedJson = gzip(json);
+        String hash = DigestUtils.md5Hex(json);
+        this.etag = "\"" + hash + "\"";
+        // A strong ETag identifies the bytes sent, so the compressed body needs its own
+        this.gzippedEtag = "\"" + hash + "-gzip\"";
+        this.createdAt = createdAt;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    // The arrays are shared by all requests and must not be modified
+    public byte[] getJson() {
+        return json;
+    }
+
+    public byte[] getGzippedJson() {
+        return gzippedJson;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getGzippedEtag() {
+        return gzippedEtag;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+}
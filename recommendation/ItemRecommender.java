@@ -1,156 +1,288 @@
 package com.laioffer.jupiter.recommendation;
 
-import com.laioffer.jupiter.db.MySQLConnection;
+import com.laioffer.jupiter.db.FavoriteCache;
+import com.laioffer.jupiter.db.FavoriteSet;
 import com.laioffer.jupiter.db.MySQLException;
 import com.laioffer.jupiter.entity.Game;
 import com.laioffer.jupiter.entity.Item;
 import com.laioffer.jupiter.entity.ItemType;
 import com.laioffer.jupiter.external.TwitchClient;
-import com.laioffer.jupiter.external.TwitchException;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 
 public class ItemRecommender {
     private static final int DEFAULT_GAME_LIMIT = 3;
     private static final int DEFAULT_PER_GAME_RECOMMENDATION_LIMIT = 10;
     private static final int DEFAULT_TOTAL_RECOMMENDATION_LIMIT = 20;
+    private static final long RECOMMENDATION_DEADLINE_MILLIS = Long.getLong("jupiter.recommendation.deadlineMillis", 5000);
 
-    //Add a recommendByTopGames method to ItemRecommender to handle recommendation when the user is not logged in.
-    //The recommendation is purely based-on top games returned by Twitch.
-
-    //return a list of Item objects for the given type. Types are one of [Stream, Video, Clip].
-    //Add items are related to the top games provided in the argument.
-    private List<Item> recommendByTopGames(ItemType type, List<Game> topGames) throws RecommendationException {
-        List<Item> recommendedItems = new ArrayList<>();
-        TwitchClient client = new TwitchClient();
-
-        topGames = topGames.subList(0, DEFAULT_GAME_LIMIT);
-        outerloop://label outerloop
-        for (Game game : topGames) {
-            List<Item> items;
-            try {
-                items = client.searchByType(game.getId(), type, DEFAULT_PER_GAME_RECOMMENDATION_LIMIT);
-            } catch (TwitchException e) {
-                e.printStackTrace();
-                throw new RecommendationException("Failed to get recommendation result");
+    private final TwitchClient client;
+
+    // How the items of a logged-in user are recommended
+    public enum Mode {
+        // Items of the games the user favorite the most, fetched from Twitch
+        GAME,
+        // Items other users favorite together with the favorites of the user, from CoOccurrenceIndex, topped up from Twitch like GAME
+        COOCCURRENCE
+    }
+
+    public ItemRecommender() {
+        this(new TwitchClient());
+    }
+
+    // e.g. a client with background priority for the precomputed default recommendation
+    public ItemRecommender(TwitchClient client) {
+        this.client = client;
+    }
+
+    // One upstream lookup needed by a recommendation request, e.g. the clips of game "1234".
+    // The same (gameId, type) is only fetched once per request.
+    private static class FetchKey {
+        private final String gameId;
+        private final ItemType type;
+
+        FetchKey(String gameId, ItemType type) {
+            this.gameId = gameId;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
             }
-            for (Item item : items) {
-                if (recommendedItems.size() == DEFAULT_TOTAL_RECOMMENDATION_LIMIT) {
-                    break outerloop;
-                }
-                recommendedItems.add(item);
+            if (!(o instanceof FetchKey)) {
+                return false;
             }
+            FetchKey other = (FetchKey) o;
+            return gameId.equals(other.gameId) && type == other.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(gameId, type);
         }
-        return recommendedItems;
     }
-    //recommendByFavoriteHistory to recommend based-on favorite history
-    //Return a list of Item objects for the given type. Types are one of [Stream, Video, Clip].
-    //All items are related to the items previously favorite by the user.
-    // E.g., if a user favorite some videos about game "just chatting", then it
-    // will return some other videos about the same game.
-    private List<Item> recommendByFavoriteHistory (Set<String> favoriteItemIds, List<String> favoriteGameIds, ItemType type) throws RecommendationException {
-        //count the favorite game IDs from the database for the given user.
-        //E.g. if the favorite game Id list is ["1234","2345","2345","3456"]
-        //the returned map is {"1234":1, "2345":2,"3456":1}
-        Map<String, Long> favoriteGameIdByCount = new HashMap<>();
-        for (String gameId : favoriteGameIds) {
-            favoriteGameIdByCount.put(gameId, favoriteGameIdByCount.getOrDefault(gameId, (long) 0) + 1);
+
+    // Returns the ids of the first DEFAULT_GAME_LIMIT top games, used when there is no favorite history for a type.
+    private List<String> topGameIds(List<Game> topGames) {
+        List<String> gameIds = new ArrayList<>();
+        for (Game game : topGames.subList(0, Math.min(DEFAULT_GAME_LIMIT, topGames.size()))) {
+            gameIds.add(game.getId());
         }
-        //Map<String, Long> favoriteGameIdByCount = favoriteGameIds.parallelStream()
-        //        .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-        //sort the game Id by count. E.g., if the input is {"1234":1, "2345":2,"3456":1}
-        //return {"2345":2, "1234":1,"3456":1}
-        List<Map.Entry<String, Long>> sortedFavoriteGameIdListByCount = new ArrayList<>(favoriteGameIdByCount.entrySet());
-        sortedFavoriteGameIdListByCount.sort((Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) -> Long.compare(e2.getValue(), e1.getValue()));
-//        sortedFavoriteGameIdListByCount.sort(new Comparator<Map.Entry<String, Long>>() {
-//            @Override
-//            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
-//                return Long.compare(o2.getValue(), o1.getValue());
-//            }
-//        });
-
-        if (sortedFavoriteGameIdListByCount.size() > DEFAULT_GAME_LIMIT) {//最多选3个game
-            sortedFavoriteGameIdListByCount = sortedFavoriteGameIdListByCount.subList(0, DEFAULT_GAME_LIMIT);
+        return gameIds;
+    }
+
+    // Start the fetches of every (gameId, type) in the plan at the same time, then assemble the result of each type in the order of
+    // its game list as the fetches complete. No thread waits for them.
+    // The streams of all the games are fetched together with one batched lookup, Helix only takes several games for streams.
+    // gameIdsByType: the games to recommend from for each type, in priority order.
+    // excludedByType: tells which items must not be recommended for each type, e.g. the items already favorite by the user.
+    // firstItemsByType: items that come first in the result of each type, e.g. found locally, the fetched items only fill up the rest.
+    // Each type stops at DEFAULT_TOTAL_RECOMMENDATION_LIMIT items, and the fetches it no longer needs are cancelled.
+    // The result fails with RecommendationException when a fetch failed or the deadline passed.
+    private CompletableFuture<Map<String, List<Item>>> recommend(Map<ItemType, List<String>> gameIdsByType, Map<ItemType, Predicate<String>> excludedByType,
+                                                                 Map<ItemType, List<Item>> firstItemsByType) {
+        Map<FetchKey, CompletableFuture<List<Item>>> fetches = new LinkedHashMap<>();
+        Map<ItemType, CompletableFuture<Map<String, List<Item>>>> batchedFetches = new EnumMap<>(ItemType.class);
+        for (Map.Entry<ItemType, List<String>> entry : gameIdsByType.entrySet()) {
+            ItemType type = entry.getKey();
+            if (type == ItemType.STREAM && !entry.getValue().isEmpty()) {
+                batchedFetches.put(type, client.searchByTypeForGamesAsync(entry.getValue(), type, DEFAULT_PER_GAME_RECOMMENDATION_LIMIT));
+                continue;
+            }
+            for (String gameId : entry.getValue()) {
+                fetches.computeIfAbsent(new FetchKey(gameId, type),
+                        key -> client.searchByTypeAsync(key.gameId, key.type, DEFAULT_PER_GAME_RECOMMENDATION_LIMIT));
+            }
         }
-        List<Item> recommendedItems = new ArrayList<>();
-        TwitchClient client = new TwitchClient();
-
-        //Search Twitch based on the favorite game IDs
-        outerloop:
-        for (Map.Entry<String, Long> favoriteGame : sortedFavoriteGameIdListByCount) {
-            List<Item> items;
-            try {
-                items = client.searchByType(favoriteGame.getKey(), type, DEFAULT_PER_GAME_RECOMMENDATION_LIMIT);
-            } catch (TwitchException e) {
-                e.printStackTrace();
-                throw new RecommendationException("Failed to get recommendation result");
+
+        Map<ItemType, CompletableFuture<List<Item>>> itemsByType = new EnumMap<>(ItemType.class);
+        for (Map.Entry<ItemType, List<String>> entry : gameIdsByType.entrySet()) {
+            ItemType type = entry.getKey();
+            List<Item> recommendedItems = new ArrayList<>(firstItemsByType.getOrDefault(type, Collections.emptyList()));
+            Set<String> firstItemIds = new HashSet<>();
+            for (Item item : recommendedItems) {
+                firstItemIds.add(item.getId());
+            }
+            Predicate<String> excluded = excludedByType.getOrDefault(type, itemId -> false).or(firstItemIds::contains);
+            CompletableFuture<Map<String, List<Item>>> batchedFetch = batchedFetches.get(type);
+            List<CompletableFuture<List<Item>>> gameFetches = new ArrayList<>();
+            for (String gameId : entry.getValue()) {
+                gameFetches.add(batchedFetch != null
+                        ? batchedFetch.thenApply(itemsByGame -> itemsByGame.getOrDefault(gameId, Collections.emptyList()))
+                        : fetches.get(new FetchKey(gameId, type)));
             }
+            itemsByType.put(type, collect(gameFetches.iterator(), recommendedItems, excluded));
+        }
+
+        CompletableFuture<Map<String, List<Item>>> result = CompletableFuture.allOf(itemsByType.values().toArray(new CompletableFuture[0]))
+                .thenApply(done -> {
+                    Map<String, List<Item>> recommendedItemMap = new HashMap<>();
+                    for (Map.Entry<ItemType, CompletableFuture<List<Item>>> entry : itemsByType.entrySet()) {
+                        recommendedItemMap.put(entry.getKey().toString(), entry.getValue().join());
+                    }
+                    return recommendedItemMap;
+                })
+                .orTimeout(RECOMMENDATION_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                .exceptionally(failure -> {
+                    Throwable cause = unwrap(failure);
+                    if (cause instanceof RecommendationException) {
+                        throw (RecommendationException) cause;
+                    }
+                    if (cause instanceof TimeoutException) {
+                        throw new RecommendationException("Timed out getting recommendation result");
+                    }
+                    cause.printStackTrace();
+                    throw new RecommendationException("Failed to get recommendation result");
+                });
+        // No-op for finished fetches, stops the ones still running after a failure
+        result.whenComplete((recommendedItemMap, failure) -> {
+            for (CompletableFuture<List<Item>> fetch : fetches.values()) {
+                fetch.cancel(true);
+            }
+            for (CompletableFuture<Map<String, List<Item>>> batchedFetch : batchedFetches.values()) {
+                batchedFetch.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    // Add the items of the games of one type, one game after the other in the order of the games, until the type has
+    // DEFAULT_TOTAL_RECOMMENDATION_LIMIT items. The fetches of the games that are no longer needed are cancelled.
+    private CompletableFuture<List<Item>> collect(Iterator<CompletableFuture<List<Item>>> gameFetches, List<Item> recommendedItems,
+                                                  Predicate<String> excluded) {
+        if (recommendedItems.size() == DEFAULT_TOTAL_RECOMMENDATION_LIMIT) {
+            // This type is complete, the remaining games are not needed
+            gameFetches.forEachRemaining(fetch -> fetch.cancel(true));
+            return CompletableFuture.completedFuture(recommendedItems);
+        }
+        if (!gameFetches.hasNext()) {
+            return CompletableFuture.completedFuture(recommendedItems);
+        }
+        return gameFetches.next().thenCompose(items -> {
             for (Item item : items) {
                 if (recommendedItems.size() == DEFAULT_TOTAL_RECOMMENDATION_LIMIT) {
-                    break outerloop;
+                    break;
                 }
-                if (!favoriteItemIds.contains(item.getId())) {
+                if (!excluded.test(item.getId())) {
                     recommendedItems.add(item);
                 }
             }
+            return collect(gameFetches, recommendedItems, excluded);
+        });
+    }
+
+    private CompletableFuture<List<Game>> topGames() {
+        return client.topGamesAsync(DEFAULT_GAME_LIMIT).exceptionally(failure -> {
+            unwrap(failure).printStackTrace();
+            throw new RecommendationException("Failed to get game data for recommendation");
+        });
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        while (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
         }
-        return recommendedItems;
+        return failure;
     }
 
     // Return a map of Item objects as the recommendation result.
     // Keys of the map are [Stream, Video, Clip].
     // Each key is corresponding to a list of Items objects,
     // each item object is a recommended item based on the top games currently on Twitch.
-    public Map<String, List<Item>> recommendItemByDefault() throws RecommendationException {
-        Map<String, List<Item>> recommendedItemMap = new HashMap<>();
-        TwitchClient client = new TwitchClient();
-        List<Game> topGames;
-        try {
-            topGames = client.topGames(DEFAULT_GAME_LIMIT);
-        } catch (TwitchException e) {
-            e.printStackTrace();
-            throw new RecommendationException("Failed to get game data for recommendation");
-        }
-        for (ItemType type : ItemType.values()) {
-            recommendedItemMap.put(type.toString(), recommendByTopGames(type, topGames));
-        }
-        return recommendedItemMap;
+    public CompletableFuture<Map<String, List<Item>>> recommendItemByDefaultAsync() {
+        return topGames().thenCompose(topGames -> {
+            List<String> topGameIds = topGameIds(topGames);
+            Map<ItemType, List<String>> gameIdsByType = new EnumMap<>(ItemType.class);
+            for (ItemType type : ItemType.values()) {
+                gameIdsByType.put(type, topGameIds);
+            }
+            return recommend(gameIdsByType, Collections.emptyMap(), Collections.emptyMap());
+        });
     }
+
     // Return a map of Item objects as the recommendation result.
     // Keys of the may are [Stream, Video, Clip].
     // Each key is corresponding to a list of Items objects,
     // each item object is a recommended item based on the previous favorite records by the user.
-    public Map<String, List<Item>> recommendItemsByUser(String userId) throws RecommendationException {
-        Map<String, List<Item>> recommendedItemMap = new HashMap<>();
-        Set<String> favoriteItemIds;
-        Map<String, List<String>> favoriteGameIds;
-        MySQLConnection connection = null;
+    // E.g., if a user favorite some videos about game "just chatting", then it
+    // will return some other videos about the same game. Types without favorite history are recommended by the top games.
+    public CompletableFuture<Map<String, List<Item>>> recommendItemsByUserAsync(String userId) {
+        return recommendItemsByUserAsync(userId, Mode.GAME);
+    }
+
+    // Same as above in the GAME mode. In the COOCCURRENCE mode the items other users favorite together with the favorites of
+    // the user come first, from the local CoOccurrenceIndex. Only the types that get fewer than DEFAULT_TOTAL_RECOMMENDATION_LIMIT
+    // of them are fetched from Twitch, and a type without favorite history is fetched from the games related to the favorite
+    // games of the user before the top games. Until the index is built the COOCCURRENCE mode is the GAME mode.
+    // The favorites are read on the calling thread, usually from FavoriteCache, only the Twitch lookups are asynchronous.
+    public CompletableFuture<Map<String, List<Item>>> recommendItemsByUserAsync(String userId, Mode mode) throws RecommendationException {
+        FavoriteSet favorites;
         try {
-            connection = new MySQLConnection();
-            favoriteItemIds = connection.getFavoriteItemIds(userId);
-            favoriteGameIds = connection.getFavoriteGameIds(favoriteItemIds);
+            favorites = FavoriteCache.getInstance().get(userId);
         } catch (MySQLException e) {
             e.printStackTrace();
             throw new RecommendationException("Failed to get user favorite history for recommendation");
-        } finally {
-            connection.close();
         }
-        for (Map.Entry<String, List<String>> entry : favoriteGameIds.entrySet()) {
-            if (entry.getValue().size() == 0) {
-                TwitchClient client = new TwitchClient();
-                List<Game> topGames;
-                try {
-                    topGames = client.topGames(DEFAULT_GAME_LIMIT);
-                } catch (TwitchException e) {
-                    e.printStackTrace();
-                    throw new RecommendationException("Failed to get game data for recommendation");
+
+        CoOccurrenceIndex index = CoOccurrenceIndex.getInstance();
+        boolean coOccurrence = mode == Mode.COOCCURRENCE && index.isReady();
+        Map<ItemType, List<Item>> localItemsByType = coOccurrence
+                ? index.recommend(favorites.getItemIds(), DEFAULT_TOTAL_RECOMMENDATION_LIMIT, favorites::containsItem)
+                : Collections.emptyMap();
+
+        Map<ItemType, List<String>> gameIdsByType = new EnumMap<>(ItemType.class);
+        Map<ItemType, Predicate<String>> excludedByType = new EnumMap<>(ItemType.class);
+        List<String> relatedGameIds = null;
+        // The types without favorite history, recommended from the top games
+        List<ItemType> topGameTypes = new ArrayList<>();
+        for (ItemType type : ItemType.values()) {
+            if (localItemsByType.getOrDefault(type, Collections.emptyList()).size() == DEFAULT_TOTAL_RECOMMENDATION_LIMIT) {
+                // Complete without Twitch
+                gameIdsByType.put(type, Collections.emptyList());
+                continue;
+            }
+            // The most favorite games of the type, ranked by favorite count
+            List<String> favoriteGameIds = favorites.getTopGameIds(type, DEFAULT_GAME_LIMIT);
+            if (favoriteGameIds.isEmpty() && coOccurrence) {
+                if (relatedGameIds == null) {
+                    relatedGameIds = index.relatedGames(favoriteGameIds(favorites), DEFAULT_GAME_LIMIT);
                 }
-                recommendedItemMap.put(entry.getKey(), recommendByTopGames(ItemType.valueOf(entry.getKey()), topGames));
-            } else {
-                recommendedItemMap.put(entry.getKey(), recommendByFavoriteHistory(favoriteItemIds, entry.getValue(), ItemType.valueOf(entry.getKey())));
+                favoriteGameIds = relatedGameIds;
+            }
+            if (favoriteGameIds.isEmpty()) {
+                topGameTypes.add(type);
             }
+            gameIdsByType.put(type, favoriteGameIds);
+            if (!favoriteGameIds.isEmpty()) {
+                excludedByType.put(type, favorites::containsItem);
+            }
+        }
+        if (topGameTypes.isEmpty()) {
+            return recommend(gameIdsByType, excludedByType, localItemsByType);
+        }
+        // Top games are only fetched once, even if several types have no favorite history
+        return topGames().thenCompose(topGames -> {
+            List<String> topGameIds = topGameIds(topGames);
+            for (ItemType type : topGameTypes) {
+                gameIdsByType.put(type, topGameIds);
+            }
+            return recommend(gameIdsByType, excludedByType, localItemsByType);
+        });
+    }
+
+    // The most favorite games of the user over all types
+    private List<String> favoriteGameIds(FavoriteSet favorites) {
+        Set<String> gameIds = new LinkedHashSet<>();
+        for (ItemType type : ItemType.values()) {
+            gameIds.addAll(favorites.getTopGameIds(type, DEFAULT_GAME_LIMIT));
         }
-        return recommendedItemMap;
+        return new ArrayList<>(gameIds);
     }
 }
@@ -0,0 +1,270 @@
+package com.laioffer.jupiter.servlet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// A response completed from the callback of a non-blocking lookup, e.g. the Twitch calls sent with HttpClient.sendAsync().
+// The container thread returns as soon as the lookup is started and no thread waits while it is in flight, so the number of
+// requests in progress is not bounded by a thread pool.
+// - At most MAX_IN_FLIGHT requests are in progress, a request beyond that is answered with 503 and Retry-After right away.
+// - A request still in progress after its timeout is answered with 504, or for a streaming response whose status was already
+//   sent, its timeout writer ends the body. Every request has a timeout, streaming ones a longer one.
+// - Whoever completes the request first owns the response: the lookup callback, the timeout or a container error.
+//   Every write goes through write() or complete() under the lock of this object, so a callback never writes to a completed response.
+// - When a filter of the chain does not support async, the calling thread waits for the lookup instead, with the same timeout.
+public class AsyncResponse {
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("jupiter.async.maxInFlight", 10_000);
+    private static final long TIMEOUT_MILLIS = Long.getLong("jupiter.async.timeoutMillis", 15_000);
+    private static final long STREAMING_TIMEOUT_MILLIS = Long.getLong("jupiter.async.streamingTimeoutMillis", 60_000);
+
+    public interface Writer {
+        void write(HttpServletResponse response) throws IOException;
+    }
+
+    public interface ResultWriter<T> {
+        void write(HttpServletResponse response, T result) throws IOException;
+    }
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+
+    private final HttpServletResponse response;
+    private final long timeoutMillis;
+    private final Writer timeoutWriter;
+    // null when the calling thread waits for the request
+    private final AsyncContext async;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // All fields below are guarded by this
+    private boolean completed;
+    // Run once the request is completed, e.g. to cancel the lookups it no longer needs
+    private final List<Runnable> endHooks = new ArrayList<>();
+
+    private AsyncResponse(HttpServletRequest request, HttpServletResponse response, long timeoutMillis, Writer timeoutWriter) {
+        this.response = response;
+        this.timeoutMillis = timeoutMillis;
+        this.timeoutWriter = timeoutWriter;
+        if (!request.isAsyncSupported()) {
+            this.async = null;
+            return;
+        }
+        this.async = request.startAsync(request, response);
+        async.setTimeout(timeoutMillis);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                timeOut();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // e.g. the client went away
+                end(null);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    // Answer the request with the result of the lookup written by resultWriter, or with 500 when the lookup failed
+    public static <T> void respond(HttpServletRequest request, HttpServletResponse response, Supplier<CompletableFuture<T>> lookup,
+                                   ResultWriter<T> resultWriter) {
+        AsyncResponse asyncResponse = start(request, response, TIMEOUT_MILLIS, AsyncResponse::writeGatewayTimeout);
+        if (asyncResponse == null) {
+            return;
+        }
+        CompletableFuture<T> future;
+        try {
+            future = lookup.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> started = future;
+        asyncResponse.onEnd(() -> started.cancel(true));
+        future.whenComplete((result, failure) -> {
+            if (failure != null) {
+                asyncResponse.fail(failure);
+            } else {
+                asyncResponse.complete(completedResponse -> resultWriter.write(completedResponse, result));
+            }
+        });
+        asyncResponse.awaitIfBlocking();
+    }
+
+    // Start a response that is written part by part with write(), e.g. the pages of a paged search as they arrive, and ended
+    // with complete(). timeoutWriter ends the response when it is still in progress after STREAMING_TIMEOUT_MILLIS.
+    // Returns null when the request was rejected because too many are in progress. The caller must call awaitIfBlocking() last.
+    public static AsyncResponse startStreaming(HttpServletRequest request, HttpServletResponse response, Writer timeoutWriter) {
+        return start(request, response, STREAMING_TIMEOUT_MILLIS, timeoutWriter);
+    }
+
+    private static AsyncResponse start(HttpServletRequest request, HttpServletResponse response, long timeoutMillis, Writer timeoutWriter) {
+        if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            response.setHeader("Retry-After", "1");
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        return new AsyncResponse(request, response, timeoutMillis, timeoutWriter);
+    }
+
+    private static void writeGatewayTimeout(HttpServletResponse response) {
+        if (!response.isCommitted()) {
+            response.reset();
+            response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        }
+    }
+
+    // Run the hook once the request is completed, right away if it already is
+    public void onEnd(Runnable hook) {
+        synchronized (this) {
+            if (!completed) {
+                endHooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    // Write part of the response. Returns false without writing when the request is already completed, e.g. by the timeout,
+    // or when the write failed, e.g. because the client went away. The request is completed in that case.
+    public boolean write(Writer writer) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            try {
+                writer.write(response);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        end(null);
+        return false;
+    }
+
+    // Write the end of the response and complete the request, unless it is already completed
+    public void complete(Writer lastWriter) {
+        end(lastWriter);
+    }
+
+    // Answer 500 when the status was not sent yet and complete the request, e.g. the lookup failed
+    public void fail(Throwable failure) {
+        synchronized (this) {
+            if (completed) {
+                // e.g. the lookup was cancelled by the timeout
+                return;
+            }
+            failures.incrementAndGet();
+        }
+        unwrap(failure).printStackTrace();
+        end(response -> {
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        });
+    }
+
+    private void timeOut() {
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            timeouts.incrementAndGet();
+        }
+        end(timeoutWriter);
+    }
+
+    // Complete the request once, after the last write. The end hooks run outside the lock, they may complete lookups whose
+    // callbacks come back here.
+    private void end(Writer lastWriter) {
+        List<Runnable> hooks;
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            try {
+                if (lastWriter != null) {
+                    lastWriter.write(response);
+                }
+            } catch (IOException | RuntimeException e) {
+                // e.g. the client went away
+                e.printStackTrace();
+            } finally {
+                inFlight.decrementAndGet();
+                if (async != null) {
+                    try {
+                        async.complete();
+                    } catch (IllegalStateException e) {
+                        // Already completed by the container, e.g. after an error
+                    }
+                }
+                done.countDown();
+            }
+            hooks = new ArrayList<>(endHooks);
+            endHooks.clear();
+        }
+        for (Runnable hook : hooks) {
+            hook.run();
+        }
+    }
+
+    // Wait for the request on the calling thread when the container does not support async for it, a no-op otherwise
+    public void awaitIfBlocking() {
+        if (async != null) {
+            return;
+        }
+        try {
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeOut();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            end(null);
+        }
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        while (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure;
+    }
+
+    // e.g. {"inFlight":120, "rejected":3, "timeouts":1, "failures":0}
+    public static Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("inFlight", (long) inFlight.get());
+        stats.put("rejected", rejected.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+}
@@ -0,0 +1,140 @@
+package com.laioffer.jupiter.servlet;
+
+import com.laioffer.jupiter.auth.SessionToken;
+import com.laioffer.jupiter.auth.SessionTokenCodec;
+import com.laioffer.jupiter.auth.TokenRevocations;
+
+import javax.servlet.*;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.*;
+import java.io.IOException;
+
+// Finds the logged-in user of the request and sets it as the "user_id" request attribute, which the servlets read instead of the session.
+// jupiter.auth.mode picks how a user is remembered between requests:
+// - session (default): the container HttpSession, which needs sticky sessions when there are several nodes.
+// - token: an HMAC-signed token in the jupiter_token cookie or an "Authorization: Bearer" header, checked without any lookup.
+//   It expires after IDLE_SECONDS without a request like the session did: a token older than REFRESH_AFTER_SECONDS is replaced
+//   by a new one on every request, until MAX_LIFETIME_SECONDS after the login. A logout revokes the token id.
+@WebFilter(filterName = "AuthenticationFilter", servletNames = {"FavoriteServlet", "RecommendationServlet", "LogoutServlet"}, asyncSupported = true)
+public class AuthenticationFilter implements Filter {
+    public static final String USER_ID = "user_id";
+    private static final String SESSION_TOKEN = "session_token";
+    private static final String TOKEN_COOKIE = "jupiter_token";
+    private static final String TOKEN_HEADER = "X-Auth-Token";
+    private static final String BEARER = "Bearer ";
+
+    private static final boolean TOKEN_MODE = "token".equalsIgnoreCase(System.getProperty("jupiter.auth.mode", "session"));
+    private static final int IDLE_SECONDS = 600;
+    private static final long REFRESH_AFTER_SECONDS = Long.getLong("jupiter.auth.token.refreshAfterSeconds", 60);
+    private static final long MAX_LIFETIME_SECONDS = Long.getLong("jupiter.auth.token.maxLifetimeSeconds", 24 * 3600);
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if (TOKEN_MODE) {
+            authenticateToken(request, response);
+        } else {
+            HttpSession session = request.getSession(false);
+            if (session != null && session.getAttribute(USER_ID) != null) {
+                request.setAttribute(USER_ID, session.getAttribute(USER_ID));
+            }
+        }
+        chain.doFilter(request, response);
+    }
+
+    private void authenticateToken(HttpServletRequest request, HttpServletResponse response) {
+        String value = readToken(request);
+        if (value == null) {
+            return;
+        }
+        SessionTokenCodec codec = SessionTokenCodec.getInstance();
+        SessionToken token = codec.decode(value);
+        long now = System.currentTimeMillis() / 1000;
+        if (token == null || token.getExpiresAt() <= now || token.getIssuedAt() + MAX_LIFETIME_SECONDS <= now
+                || TokenRevocations.getInstance().isRevoked(token.getTokenId())) {
+            return;
+        }
+        request.setAttribute(USER_ID, token.getUserId());
+        request.setAttribute(SESSION_TOKEN, token);
+        // Sliding expiry: the token was issued or refreshed at expiresAt - IDLE_SECONDS
+        if (now - (token.getExpiresAt() - IDLE_SECONDS) >= REFRESH_AFTER_SECONDS || codec.isSignedWithOldKey(value)) {
+            writeToken(request, response, token.withExpiresAt(Math.min(now + IDLE_SECONDS, token.getIssuedAt() + MAX_LIFETIME_SECONDS)));
+        }
+    }
+
+    private static String readToken(HttpServletRequest request) {
+        String authorization = request.getHeader("Authorization");
+        if (authorization != null && authorization.startsWith(BEARER)) {
+            return authorization.substring(BEARER.length()).trim();
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (TOKEN_COOKIE.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    // The token goes to browsers as an HttpOnly cookie, and to other clients as a response header they send back as a bearer token
+    private static void writeToken(HttpServletRequest request, HttpServletResponse response, SessionToken token) {
+        String value = SessionTokenCodec.getInstance().encode(token);
+        Cookie cookie = new Cookie(TOKEN_COOKIE, value);
+        cookie.setPath("/");
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        response.addCookie(cookie);
+        response.setHeader(TOKEN_HEADER, value);
+    }
+
+    // Remember the user as logged in, called by LoginServlet after the password was verified
+    public static void signIn(HttpServletRequest request, HttpServletResponse response, String userId) {
+        if (TOKEN_MODE) {
+            long now = System.currentTimeMillis() / 1000;
+            writeToken(request, response, new SessionToken(userId, SessionTokenCodec.getInstance().newTokenId(), now, now + IDLE_SECONDS));
+            return;
+        }
+        //create a new session, put userId as an attribute into the session object
+        // and set the expiration time to 600 seconds.
+        HttpSession session = request.getSession();
+        session.setAttribute(USER_ID, userId);
+        session.setMaxInactiveInterval(IDLE_SECONDS);
+    }
+
+    // Forget the logged-in user of the request, called by LogoutServlet
+    public static void signOut(HttpServletRequest request, HttpServletResponse response) {
+        if (TOKEN_MODE) {
+            SessionToken token = (SessionToken) request.getAttribute(SESSION_TOKEN);
+            if (token != null) {
+                // Refreshed copies share the token id and cannot outlive the maximum lifetime
+                TokenRevocations.getInstance().revoke(token.getTokenId(), token.getIssuedAt() + MAX_LIFETIME_SECONDS);
+            }
+            Cookie cookie = new Cookie(TOKEN_COOKIE, null);
+            cookie.setPath("/");
+            cookie.setMaxAge(0);
+            response.addCookie(cookie);
+            return;
+        }
+        //Destroy the session since the user is logged out
+        HttpSession session = request.getSession(false);
+        if (session != null) {
+            session.invalidate();
+        }
+        //清除浏览器cookie里的sessionId to null
+        Cookie cookie = new Cookie("JSESSIONID", null);
+        cookie.setPath("/");//删除根目录下的cookie,相当于localhost:8080/jupiter
+        cookie.setMaxAge(0);
+        response.addCookie(cookie);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
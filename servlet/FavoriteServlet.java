@@ -1,7 +1,9 @@
 package com.laioffer.jupiter.servlet;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.laioffer.jupiter.db.MySQLConnection;
+import com.laioffer.jupiter.db.FavoriteCache;
+import com.laioffer.jupiter.db.FavoriteEvent;
+import com.laioffer.jupiter.db.FavoriteWriteBehind;
 import com.laioffer.jupiter.db.MySQLException;
 import com.laioffer.jupiter.entity.FavoriteRequestBody;
 import com.laioffer.jupiter.entity.Item;
@@ -11,7 +13,6 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.util.*;
 
@@ -21,94 +22,93 @@ public class FavoriteServlet extends HttpServlet {
         //Get user ID from request URL, this is a temporary solution since we don't support session now
         //String userId = request.getParameter("user_id");
 
-        HttpSession session = request.getSession(false);
-        if (session == null) {
+        //The logged-in user, set by AuthenticationFilter
+        String userId = (String) request.getAttribute(AuthenticationFilter.USER_ID);
+        if (userId == null) {
             response.setStatus(HttpServletResponse.SC_FORBIDDEN);
             return;
         }
-        String userId = (String) session.getAttribute("user_id");
 
         //Get favorite item information from the request body
         //ObjectMapper mapper = new ObjectMapper();
         //FavoriteRequestBody body = mapper.readValue(request.getReader(), FavoriteRequestBody.class);
 
         FavoriteRequestBody body = ServletUtil.readRequestBody(FavoriteRequestBody.class, request);
-        if (body == null) {
+        //The item is saved as it is, every column the items table needs must be there
+        if (body == null || body.getFavoriteItem() == null || body.getFavoriteItem().getId() == null
+                || body.getFavoriteItem().getType() == null || body.getFavoriteItem().getGameId() == null) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
-        MySQLConnection connection = null;
+        //Save the favorite item, or queue it when FavoriteWriteBehind is enabled
+        submit(response, FavoriteEvent.set(userId, body.getFavoriteItem()));
+    }
+
+    //Write the favorite change. Answers 202 when it is only queued and not written yet,
+    //and 503 when too many changes are waiting to be written
+    private void submit(HttpServletResponse response, FavoriteEvent event) throws ServletException {
         try {
-            //Save the favorite item to the database
-            connection = new MySQLConnection();
-            connection.setFavoriteItem(userId, body.getFavoriteItem());
+            switch (FavoriteWriteBehind.getInstance().submit(event)) {
+                case QUEUED:
+                    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                    break;
+                case REJECTED:
+                    response.setHeader("Retry-After", "1");
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    break;
+                default:
+                    break;
+            }
         } catch (MySQLException e) {
             throw new ServletException(e);
-        } finally {
-            if (connection != null) {
-                connection.close();
-            }
         }
     }
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         //String userId = request.getParameter("user_id");
 
-        HttpSession session = request.getSession(false);
-        if (session == null) {
+        //The logged-in user, set by AuthenticationFilter
+        String userId = (String) request.getAttribute(AuthenticationFilter.USER_ID);
+        if (userId == null) {
             response.setStatus(HttpServletResponse.SC_FORBIDDEN);
             return;
         }
-        String userId = (String) session.getAttribute("user_id");
 
         Map<String, List<Item>> itemMap;
-        MySQLConnection connection = null;
         try {
-            //Read the favorite items from the database
-            connection = new MySQLConnection();
-            itemMap = connection.getFavoriteItems(userId);
+            //Read the favorite items from the cache or the database, then apply the changes of the user that are not written yet
+            Map<String, FavoriteEvent> unflushedEvents = FavoriteWriteBehind.getInstance().unflushedEvents(userId);
+            itemMap = FavoriteCache.getInstance().get(userId).getItemMap();
+            FavoriteWriteBehind.overlay(itemMap, unflushedEvents);
             //response.setContentType("application/json;charset=UTF-8");
             //response.getWriter().print(new ObjectMapper().writeValueAsString(itemMap));
 
             ServletUtil.writeItemMap(response, itemMap);
         } catch (MySQLException e) {
             throw new ServletException(e);
-        } finally {
-            if (connection != null) {
-                connection.close();
-            }
         }
     }
 
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         //String userId = request.getParameter("user_id");
 
-        HttpSession session = request.getSession(false);
-        if (session == null) {
+        //The logged-in user, set by AuthenticationFilter
+        String userId = (String) request.getAttribute(AuthenticationFilter.USER_ID);
+        if (userId == null) {
             response.setStatus(HttpServletResponse.SC_FORBIDDEN);
             return;
         }
-        String userId = (String) session.getAttribute("user_id");
 
         //ObjectMapper mapper = new ObjectMapper();
         //FavoriteRequestBody body = mapper.readValue(request.getReader(), FavoriteRequestBody.class);
 
         FavoriteRequestBody body = ServletUtil.readRequestBody(FavoriteRequestBody.class, request);
-        if (body == null) {
+        //Only the id of the item is needed to remove it
+        if (body == null || body.getFavoriteItem() == null || body.getFavoriteItem().getId() == null) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
-        MySQLConnection connection = null;
-        try {
-            //Remove the favorite item from the database
-            connection = new MySQLConnection();
-            connection.unsetFavoriteItem(userId, body.getFavoriteItem().getId());
-        } catch (MySQLException e) {
-            throw new ServletException(e);
-        } finally {
-            if (connection != null) {
-                connection.close();
-            }
-        }
+        //Remove the favorite item, or queue the removal when FavoriteWriteBehind is enabled
+        submit(response, FavoriteEvent.unset(userId, body.getFavoriteItem()));
     }
 }
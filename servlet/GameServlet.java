@@ -7,33 +7,34 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.laioffer.jupiter.entity.Game;
+import com.laioffer.jupiter.entity.EntityMapper;
 import com.laioffer.jupiter.external.TwitchClient;
-import com.laioffer.jupiter.external.TwitchException;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONObject;
 
-@WebServlet(name = "GameServlet",urlPatterns = {"/game"})
+@WebServlet(name = "GameServlet",urlPatterns = {"/game"}, asyncSupported = true)
 public class GameServlet extends HttpServlet {
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         // Get gameName from request URL.
         String gameName = request.getParameter("game_name");
         TwitchClient client = new TwitchClient();
+        // The response is written from the callback of the Twitch lookup, the container thread is released right away.
+        // Return the dedicated game information if gameName is provided in the request URL, otherwise return the top x games.
+        if (gameName != null) {
+            System.out.println("searchGame: " + gameName);
+            AsyncResponse.respond(request, response, () -> client.searchGameAsync(gameName),
+                    (gameResponse, game) -> writeJson(gameResponse, EntityMapper.GAME_WRITER.writeValueAsString(game)));
+        } else {
+            System.out.println("topGames");
+            AsyncResponse.respond(request, response, () -> client.topGamesAsync(0),
+                    (gameResponse, games) -> writeJson(gameResponse, EntityMapper.GAME_LIST_WRITER.writeValueAsString(games)));
+        }
+    }
+
+    private static void writeJson(HttpServletResponse response, String json) throws IOException {
         // Let the client know the returned data is in JSON format.
         response.setContentType("application/json;charset=UTF-8");
-        try{
-            // Return the dedicated game information if gameName is provided in the request URL, otherwise return the top x games.
-            if (gameName != null) {
-                System.out.println("searchGame: " + gameName);
-                response.getWriter().print(new ObjectMapper().writeValueAsString(client.searchGame(gameName)));
-            } else {
-                System.out.println("topGames");
-                response.getWriter().print(new ObjectMapper().writeValueAsString(client.topGames(0)));
-            }
-        } catch (TwitchException e) {
-            throw new ServletException(e);
-        }
+        response.getWriter().print(json);
     }
 }
@@ -0,0 +1,36 @@
+package com.laioffer.jupiter.servlet;
+
+import com.laioffer.jupiter.entity.EntityMapper;
+import com.laioffer.jupiter.external.GameIndex;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+
+// Autocomplete of game names, e.g. /game/suggest?q=mine&limit=5 -> [{"id":"27471", "name":"Minecraft", ...}, ...]
+// Answered from the in-memory GameIndex only, so it runs on the container thread and never calls Twitch.
+@WebServlet(name = "GameSuggestServlet", urlPatterns = {"/game/suggest"})
+public class GameSuggestServlet extends HttpServlet {
+    private static final int DEFAULT_LIMIT = 10;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String query = request.getParameter("q");
+        int limit = DEFAULT_LIMIT;
+        String limitParameter = request.getParameter("limit");
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().print(EntityMapper.GAME_LIST_WRITER.writeValueAsString(
+                query == null ? Collections.emptyList() : GameIndex.getInstance().suggest(query, limit)));
+    }
+}
@@ -0,0 +1,41 @@
+package com.laioffer.jupiter.servlet;
+
+import com.laioffer.jupiter.db.FavoriteWriteBehind;
+import com.laioffer.jupiter.entity.EntityMapper;
+import com.laioffer.jupiter.external.GameIndex;
+import com.laioffer.jupiter.external.TopGamesRefresher;
+import com.laioffer.jupiter.external.TwitchHttpClient;
+import com.laioffer.jupiter.external.TwitchRateLimiter;
+import com.laioffer.jupiter.recommendation.CoOccurrenceIndex;
+import com.laioffer.jupiter.recommendation.DefaultRecommendationRefresher;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+// Start and stop the process-wide resources shared by all servlets together with the web application.
+@WebListener
+public class JupiterContextListener implements ServletContextListener {
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        EntityMapper.warmUp();
+        // Loaded before the refreshers start adding games
+        GameIndex.getInstance().start();
+        FavoriteWriteBehind.getInstance().start();
+        TopGamesRefresher.getInstance().start();
+        DefaultRecommendationRefresher.getInstance().start();
+        CoOccurrenceIndex.getInstance().start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        // Write the queued favorite changes while the database is still available
+        CoOccurrenceIndex.getInstance().stop();
+        FavoriteWriteBehind.getInstance().stop();
+        DefaultRecommendationRefresher.getInstance().stop();
+        TopGamesRefresher.getInstance().stop();
+        GameIndex.getInstance().stop();
+        TwitchRateLimiter.getInstance().shutdown();
+        TwitchHttpClient.shutdown();
+    }
+}
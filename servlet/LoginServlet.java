@@ -1,8 +1,10 @@
 package com.laioffer.jupiter.servlet;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.laioffer.jupiter.db.MySQLConnection;
+import com.laioffer.jupiter.auth.CredentialVerifier;
+import com.laioffer.jupiter.auth.LoginThrottledException;
 import com.laioffer.jupiter.db.MySQLException;
+import com.laioffer.jupiter.entity.EntityMapper;
 import com.laioffer.jupiter.entity.LoginRequestBody;
 import com.laioffer.jupiter.entity.LoginResponseBody;
 
@@ -12,11 +14,13 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 import java.io.IOException;
 
 @WebServlet(name = "LoginServlet", urlPatterns = {"/login"})
 public class LoginServlet extends HttpServlet {
+    //HttpServletResponse has no constant for 429 Too Many Requests
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         //Read user data from the request body
 
@@ -29,28 +33,23 @@ public class LoginServlet extends HttpServlet {
             return;
         }
         String username;
-        MySQLConnection connection = null;
         try {
             //Verify if the user ID and password are correct
-            connection = new MySQLConnection();
-            String userId = body.getUserId();
-            String password = ServletUtil.encryptPassword(body.getUserId(), body.getPassword());
-            username = connection.verifyLogin(userId, password);
+            username = CredentialVerifier.getInstance().verify(body.getUserId(), body.getPassword(), request.getRemoteAddr());
+        } catch (LoginThrottledException e) {
+            response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            return;
         } catch (MySQLException e) {
             e.printStackTrace();
             throw new ServletException(e);
-        } finally {
-            connection.close();
         }
-        //create a new session, put userId as an attribute into the session object
-        // and set the expiration time to 600 seconds.
+        //Remember the user in a session or a signed token, depending on the authentication mode
         if (!username.isEmpty()) {
-            HttpSession session = request.getSession();
-            session.setAttribute("user_id", body.getUserId());
-            session.setMaxInactiveInterval(600);
+            AuthenticationFilter.signIn(request, response, body.getUserId());
             LoginResponseBody loginResponseBody = new LoginResponseBody(body.getUserId(), username);
             response.setContentType("application/json;charset=UTF-8");
-            response.getWriter().print(new ObjectMapper().writeValueAsString(loginResponseBody));
+            response.getWriter().print(EntityMapper.LOGIN_RESPONSE_WRITER.writeValueAsString(loginResponseBody));
 
             //response.addHeader("sessionid", session.getId());//Tomcat已实现把sessonId加到response header里，不需要自己实现
         } else {
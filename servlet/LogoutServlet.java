@@ -8,16 +8,7 @@ import java.io.IOException;
 @WebServlet(name = "LogoutServlet", urlPatterns = {"/logout"})
 public class LogoutServlet extends HttpServlet {
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        //Destroy the session since the user is logged out
-
-        HttpSession session = request.getSession(false);
-        if (session != null) {
-            session.invalidate();
-        }
-        //清除浏览器cookie里的sessionId to null
-        Cookie cookie = new Cookie("JSESSIONID", null);
-        cookie.setPath("/");//删除根目录下的cookie,相当于localhost:8080/jupiter
-        cookie.setMaxAge(0);
-        response.addCookie(cookie);
+        //Destroy the session or revoke the token since the user is logged out
+        AuthenticationFilter.signOut(request, response);
     }
 }
@@ -0,0 +1,49 @@
+package com.laioffer.jupiter.servlet;
+
+import com.laioffer.jupiter.auth.CredentialVerifier;
+import com.laioffer.jupiter.db.DBMetrics;
+import com.laioffer.jupiter.db.FavoriteCache;
+import com.laioffer.jupiter.db.FavoriteWriteBehind;
+import com.laioffer.jupiter.db.ItemCatalog;
+import com.laioffer.jupiter.entity.EntityMapper;
+import com.laioffer.jupiter.external.GameIndex;
+import com.laioffer.jupiter.external.TopGamesRefresher;
+import com.laioffer.jupiter.external.TwitchCache;
+import com.laioffer.jupiter.external.TwitchCircuitBreaker;
+import com.laioffer.jupiter.external.TwitchHttpClient;
+import com.laioffer.jupiter.external.TwitchRateLimiter;
+import com.laioffer.jupiter.recommendation.CoOccurrenceIndex;
+import com.laioffer.jupiter.recommendation.DefaultRecommendationRefresher;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Expose runtime statistics of the backend for monitoring, e.g. {"twitchHttp":{"inFlight":3, "peakInFlight":120, ...}, "twitchCache":{...}}
+@WebServlet(name = "MetricsServlet", urlPatterns = {"/metrics"})
+public class MetricsServlet extends HttpServlet {
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("asyncRequests", AsyncResponse.getStats());
+        metrics.put("twitchHttp", TwitchHttpClient.getStats());
+        metrics.put("twitchRateLimit", TwitchRateLimiter.getInstance().getStats());
+        metrics.put("twitchCircuitBreakers", TwitchCircuitBreaker.getAllStats());
+        metrics.put("twitchCache", TwitchCache.getInstance().getStats());
+        metrics.put("topGamesSnapshot", TopGamesRefresher.getInstance().getStats());
+        metrics.put("gameIndex", GameIndex.getInstance().getStats());
+        metrics.put("defaultRecommendation", DefaultRecommendationRefresher.getInstance().getStats());
+        metrics.put("coOccurrence", CoOccurrenceIndex.getInstance().getStats());
+        metrics.put("login", CredentialVerifier.getInstance().getStats());
+        metrics.put("database", DBMetrics.getInstance().getStats());
+        metrics.put("favoriteCache", FavoriteCache.getInstance().getStats());
+        metrics.put("favoriteWriteBehind", FavoriteWriteBehind.getInstance().getStats());
+        metrics.put("itemCatalog", ItemCatalog.getInstance().getStats());
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().print(EntityMapper.MAPPER.writeValueAsString(metrics));
+    }
+}
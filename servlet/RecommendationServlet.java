@@ -1,37 +1,46 @@
 package com.laioffer.jupiter.servlet;
 
-import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.recommendation.DefaultRecommendationRefresher;
+import com.laioffer.jupiter.recommendation.DefaultRecommendationSnapshot;
 import com.laioffer.jupiter.recommendation.ItemRecommender;
-import com.laioffer.jupiter.recommendation.RecommendationException;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.util.*;
 
-@WebServlet(name = "RecommendationServlet", urlPatterns = {"/recommendation"})
+@WebServlet(name = "RecommendationServlet", urlPatterns = {"/recommendation"}, asyncSupported = true)
 public class RecommendationServlet extends HttpServlet {
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        HttpSession session = request.getSession(false);
+        //The logged-in user, set by AuthenticationFilter
+        String userId = (String) request.getAttribute(AuthenticationFilter.USER_ID);
+        //mode=cooccurrence recommends from what other users favorite together, the default is by the favorite games
+        ItemRecommender.Mode mode;
+        String modeParameter = request.getParameter("mode");
+        if (modeParameter == null || modeParameter.equalsIgnoreCase("game")) {
+            mode = ItemRecommender.Mode.GAME;
+        } else if (modeParameter.equalsIgnoreCase("cooccurrence")) {
+            mode = ItemRecommender.Mode.COOCCURRENCE;
+        } else {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        //The default recommendation is the same for every logged-out user, serve the precomputed response when it is ready
+        if (userId == null) {
+            DefaultRecommendationSnapshot snapshot = DefaultRecommendationRefresher.getInstance().current();
+            if (snapshot != null) {
+                ServletUtil.writePrecomputed(request, response, snapshot);
+                return;
+            }
+        }
+        // The recommendation calls Twitch, the response is written from the callback of the lookups and the container thread is released right away
         ItemRecommender itemRecommender = new ItemRecommender();
-        Map<String, List<Item>> itemMap;
         //if the user is successfully logged in , recommend by the favorite records,
         // otherwise recommend by the top games
-        try {
-            if (session == null) {
-                itemMap = itemRecommender.recommendItemByDefault();
-            } else {
-                String userId = (String) request.getSession().getAttribute("user_id");
-                itemMap = itemRecommender.recommendItemsByUser(userId);
-            }
-        } catch (RecommendationException e) {
-            e.printStackTrace();
-            throw new ServletException(e);
-        }
-        ServletUtil.writeItemMap(response, itemMap);
+        AsyncResponse.respond(request, response,
+                () -> userId == null ? itemRecommender.recommendItemByDefaultAsync() : itemRecommender.recommendItemsByUserAsync(userId, mode),
+                ServletUtil::writeItemMap);
     }
 }
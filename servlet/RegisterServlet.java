@@ -1,6 +1,7 @@
 package com.laioffer.jupiter.servlet;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.laioffer.jupiter.auth.CredentialVerifier;
 import com.laioffer.jupiter.db.MySQLConnection;
 import com.laioffer.jupiter.db.MySQLException;
 import com.laioffer.jupiter.entity.User;
@@ -30,7 +31,7 @@ public class RegisterServlet extends HttpServlet {
         try {
             //Add the new user to the database
             connection = new MySQLConnection();
-            user.setPassword(ServletUtil.encryptPassword(user.getUserId(), user.getPassword()));
+            user.setPassword(CredentialVerifier.getInstance().hashNewPassword(user.getUserId(), user.getPassword()));
             isUserAdded = connection.addUser(user);
         } catch (MySQLException e) {
             e.printStackTrace();
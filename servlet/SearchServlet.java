@@ -1,8 +1,13 @@
 package com.laioffer.jupiter.servlet;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.laioffer.jupiter.entity.EntityMapper;
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+import com.laioffer.jupiter.external.HelixPage;
+import com.laioffer.jupiter.external.ItemPageLoader;
 import com.laioffer.jupiter.external.TwitchClient;
-import com.laioffer.jupiter.external.TwitchException;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -10,9 +15,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.CompletionException;
 
-@WebServlet(name = "SearchServlet", urlPatterns = {"/search"})
+@WebServlet(name = "SearchServlet", urlPatterns = {"/search"}, asyncSupported = true)
 public class SearchServlet extends HttpServlet {
+    private static final int DEFAULT_PAGED_LIMIT = 100;
+    private static final int MAX_PAGED_LIMIT = Integer.getInteger("jupiter.search.maxLimit", 1000);
+    private static final int PREFETCH_PAGES = Integer.getInteger("jupiter.search.prefetchPages", 1);
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         String gameId = request.getParameter("game_id");
@@ -21,13 +30,130 @@ public class SearchServlet extends HttpServlet {
             return;
         }
         TwitchClient client = new TwitchClient();
+        // e.g. /search?game_id=12924&type=CLIP&limit=500&cursor=abc returns the clips page by page
+        if (request.getParameter("limit") != null || request.getParameter("cursor") != null) {
+            doGetPaged(request, response, client, gameId);
+            return;
+        }
+        //response.setContentType("applicaton/json;charset=UTF-8");
+        //response.getWriter().print(new ObjectMapper().writeValueAsString(client.searchItems(gameId)));
+
+        // The response is written from the callback of the Twitch lookups, the container thread is released right away
+        AsyncResponse.respond(request, response, () -> client.searchItemsAsync(gameId), (searchResponse, itemMap) -> {
+            if (itemMap.isPartial()) {
+                // Let the client know which types are missing instead of failing the whole search
+                searchResponse.setHeader("X-Partial-Result", String.join(",", itemMap.getFailedTypes()));
+            }
+            ServletUtil.writeItemMap(searchResponse, itemMap);
+        });
+    }
+
+    // Paginated search of one item type. Items are streamed to the client as Twitch pages arrive instead of being buffered,
+    // the response looks like {"CLIP":[item1, item2, ...], "cursor":"abc"}. Pass the cursor back to continue after the last item.
+    // Each page is written from the callback of its lookup, no thread waits for Twitch between the pages.
+    private void doGetPaged(HttpServletRequest request, HttpServletResponse response, TwitchClient client, String gameId) {
+        ItemType type;
+        int limit;
         try {
-            //response.setContentType("applicaton/json;charset=UTF-8");
-            //response.getWriter().print(new ObjectMapper().writeValueAsString(client.searchItems(gameId)));
+            type = ItemType.valueOf(request.getParameter("type"));
+            limit = request.getParameter("limit") == null ? DEFAULT_PAGED_LIMIT : Integer.parseInt(request.getParameter("limit"));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (limit <= 0 || limit > MAX_PAGED_LIMIT) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        PagedSearch search = new PagedSearch(type);
+        AsyncResponse asyncResponse = AsyncResponse.startStreaming(request, response, search::writeTimeout);
+        if (asyncResponse == null) {
+            return;
+        }
+        ItemPageLoader pages = client.searchPages(gameId, type, limit, request.getParameter("cursor"), PREFETCH_PAGES);
+        asyncResponse.onEnd(pages::close);
+        search.next(asyncResponse, pages);
+        asyncResponse.awaitIfBlocking();
+    }
+
+    // Writes the pages of one paged search as they arrive. The fields are only used by the writers, which run one at a time
+    // under the lock of the AsyncResponse.
+    private static class PagedSearch {
+        private final ItemType type;
+        // null until the first page arrived and the status was sent
+        private JsonGenerator generator;
+        private String cursor;
+
+        PagedSearch(ItemType type) {
+            this.type = type;
+        }
+
+        // Ask for the next page, and write it from the callback when it arrives
+        private void next(AsyncResponse asyncResponse, ItemPageLoader pages) {
+            pages.next().whenComplete((page, failure) -> {
+                if (failure != null) {
+                    String error = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause().getMessage() : failure.getMessage();
+                    failure.printStackTrace();
+                    asyncResponse.complete(response -> {
+                        if (generator == null) {
+                            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        } else {
+                            // The status is already sent, report the failure in the body. The cursor still points after the last item written.
+                            end(error);
+                        }
+                    });
+                } else if (page == null) {
+                    asyncResponse.complete(response -> {
+                        start(response);
+                        end(null);
+                    });
+                } else if (asyncResponse.write(response -> writePage(response, page))) {
+                    next(asyncResponse, pages);
+                }
+            });
+        }
+
+        private void start(HttpServletResponse response) throws IOException {
+            if (generator != null) {
+                return;
+            }
+            response.setContentType("application/json;charset=UTF-8");
+            generator = EntityMapper.MAPPER.getFactory().createGenerator(response.getWriter());
+            generator.writeStartObject();
+            generator.writeArrayFieldStart(type.toString());
+        }
+
+        private void writePage(HttpServletResponse response, HelixPage<Item> page) throws IOException {
+            start(response);
+            for (Item item : page.getData()) {
+                EntityMapper.ITEM_WRITER.writeValue(generator, item);
+            }
+            cursor = page.getCursor();
+            generator.flush();
+            response.flushBuffer();
+        }
+
+        private void end(String error) throws IOException {
+            generator.writeEndArray();
+            if (cursor != null) {
+                generator.writeStringField("cursor", cursor);
+            }
+            if (error != null) {
+                generator.writeStringField("error", error);
+            }
+            generator.writeEndObject();
+            generator.flush();
+        }
 
-            ServletUtil.writeItemMap(response,client.searchItems(gameId));
-        } catch (TwitchException e) {
-            throw new ServletException(e);
+        // Before the first page the request is answered with 504, after it the body is ended with the items written so far
+        private void writeTimeout(HttpServletResponse response) throws IOException {
+            if (generator == null) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            } else {
+                end("Timed out waiting for the next page from Twitch API");
+            }
         }
     }
 }
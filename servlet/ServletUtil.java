@@ -2,33 +2,98 @@ package com.laioffer.jupiter.servlet;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.laioffer.jupiter.entity.EntityMapper;
 import com.laioffer.jupiter.entity.Item;
-import org.apache.commons.codec.digest.DigestUtils;
+import com.laioffer.jupiter.recommendation.DefaultRecommendationSnapshot;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class ServletUtil {
 
     public static void writeItemMap(HttpServletResponse response, Map<String, List<Item>> itemMap) throws IOException {
         response.setContentType("application/json;charset=UTF-8");
-        response.getWriter().print(new ObjectMapper().writeValueAsString(itemMap));
+        response.getWriter().print(EntityMapper.ITEM_MAP_WRITER.writeValueAsString(itemMap));
     }
 
-    //Help encrypt the user password before save to the database
+    //Write a precomputed JSON response with a single buffer write. Answers 304 when the client already has the same version (If-None-Match),
+    //and sends the gzip variant when the client accepts it. Each variant has its own ETag.
+    public static void writePrecomputed(HttpServletRequest request, HttpServletResponse response, DefaultRecommendationSnapshot snapshot) throws IOException {
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        String etag = gzip ? snapshot.getGzippedEtag() : snapshot.getEtag();
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matchesEtag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] body = snapshot.getJson();
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = snapshot.getGzippedJson();
+        }
+        response.setContentType("application/json;charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
 
-    public static String encryptPassword(String userId, String password) throws IOException {
-        return DigestUtils.md5Hex(userId + DigestUtils.md5Hex(password)).toLowerCase();
+    //e.g. "gzip, deflate" accepts gzip, "gzip;q=0" and "*;q=0" do not. An explicit gzip entry wins over "*".
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzipQuality = null;
+        Double anyQuality = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzipQuality = quality;
+            } else if (name.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+        if (gzipQuality != null) {
+            return gzipQuality > 0;
+        }
+        return anyQuality != null && anyQuality > 0;
+    }
+
+    static boolean matchesEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            //weak comparison, e.g. W/"abc" matches "abc"
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public static <T> T readRequestBody(Class<T> cl, HttpServletRequest request) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return mapper.readValue(request.getReader(), cl);
+            return EntityMapper.readerFor(cl).readValue(request.getReader());
         } catch (JsonParseException | JsonMappingException e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,39 @@
+package com.laioffer.jupiter.auth;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LoginThrottleTest {
+    @Test
+    void refusesAKeyUntilItsWindowEnds() {
+        LoginThrottle throttle = new LoginThrottle(3, 1000, 100);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, throttle.retryAfterMillis("alice\u00001.2.3.4", 100));
+            throttle.recordFailure("alice\u00001.2.3.4", 100);
+        }
+        assertEquals(600, throttle.retryAfterMillis("alice\u00001.2.3.4", 500));
+        // The same user from another address is not locked out
+        assertEquals(0, throttle.retryAfterMillis("alice\u00005.6.7.8", 500));
+        assertEquals(0, throttle.retryAfterMillis("alice\u00001.2.3.4", 1100));
+    }
+
+    @Test
+    void resetForgetsTheFailures() {
+        LoginThrottle throttle = new LoginThrottle(1, 1000, 100);
+        throttle.recordFailure("key", 0);
+        assertEquals(1000, throttle.retryAfterMillis("key", 0));
+        throttle.reset("key");
+        assertEquals(0, throttle.retryAfterMillis("key", 0));
+    }
+
+    @Test
+    void forgetsTheLeastRecentlyUsedKeys() {
+        LoginThrottle throttle = new LoginThrottle(1, 1000, 2);
+        throttle.recordFailure("a", 0);
+        throttle.recordFailure("b", 0);
+        throttle.recordFailure("c", 0);
+        assertEquals(2, throttle.size());
+        assertEquals(0, throttle.retryAfterMillis("a", 0));
+    }
+}
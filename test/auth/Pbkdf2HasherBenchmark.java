@@ -0,0 +1,28 @@
+package com.laioffer.jupiter.auth;
+
+// Measures the logins per second one core sustains for each PBKDF2 iteration count, to pick jupiter.auth.pbkdf2.iterations.
+// Not a test: run it on the production hardware, e.g. java ... Pbkdf2HasherBenchmark 50000 100000 200000
+public class Pbkdf2HasherBenchmark {
+    public static void main(String[] args) {
+        int[] settings = args.length == 0 ? new int[]{25_000, 50_000, 100_000, 200_000, 400_000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            settings[i] = Integer.parseInt(args[i]);
+        }
+        for (int iterations : settings) {
+            Pbkdf2Hasher hasher = new Pbkdf2Hasher(iterations);
+            String stored = hasher.hash("1111", "password");
+            // Warm up the JIT before measuring
+            for (int i = 0; i < 5; i++) {
+                hasher.verify("1111", "password", stored);
+            }
+            int logins = 0;
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < 2_000_000_000L) {
+                hasher.verify("1111", "password", stored);
+                logins++;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("iterations=%d: %.1f logins/s per core, %.2f ms per login%n", iterations, logins / seconds, seconds * 1000 / logins);
+        }
+    }
+}
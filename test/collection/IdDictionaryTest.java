@@ -0,0 +1,69 @@
+package com.laioffer.jupiter.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IdDictionaryTest {
+    @Test
+    void encodesIdsToDenseCodes() {
+        IdDictionary dictionary = new IdDictionary();
+        assertEquals(0, dictionary.encode("a"));
+        assertEquals(1, dictionary.encode("b"));
+        assertEquals(0, dictionary.encode("a"));
+        assertEquals(1, dictionary.find("b"));
+        assertEquals(-1, dictionary.find("c"));
+        assertEquals("b", dictionary.decode(1));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    void concurrentEncodersAgreeOnEveryCode() throws Exception {
+        int threads = 8;
+        int ids = 5_000;
+        IdDictionary dictionary = new IdDictionary();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    int[] codes = new int[ids];
+                    // Every thread encodes the same ids in a different order
+                    for (int i = 0; i < ids; i++) {
+                        int id = (i * 7 + offset * 13) % ids;
+                        codes[id] = dictionary.encode("id-" + id);
+                        assertEquals("id-" + id, dictionary.decode(codes[id]));
+                    }
+                    return codes;
+                }));
+            }
+            start.countDown();
+            int[] first = results.get(0).get();
+            for (Future<int[]> result : results) {
+                assertArrayEquals(first, result.get());
+            }
+            assertEquals(ids, dictionary.size());
+            Set<Integer> distinct = new HashSet<>();
+            for (int code : first) {
+                distinct.add(code);
+                assertEquals(true, code >= 0 && code < ids);
+            }
+            assertEquals(ids, distinct.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.laioffer.jupiter.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IntHashSetTest {
+    @Test
+    void addReportsWhetherTheValueIsNew() {
+        IntHashSet set = new IntHashSet();
+        assertTrue(set.add(3));
+        assertFalse(set.add(3));
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(4));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    void keepsEveryValueAcrossRehashes() {
+        IntHashSet set = new IntHashSet(2);
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            int value = random.nextInt(50_000);
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        for (int value = 0; value < 50_000; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+    }
+
+    @Test
+    void rejectsNegativeValues() {
+        IntHashSet set = new IntHashSet();
+        assertThrows(IllegalArgumentException.class, () -> set.add(-1));
+        assertFalse(set.contains(-1));
+    }
+}
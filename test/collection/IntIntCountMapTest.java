@@ -0,0 +1,43 @@
+package com.laioffer.jupiter.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IntIntCountMapTest {
+    @Test
+    void incrementReturnsTheNewCount() {
+        IntIntCountMap counts = new IntIntCountMap();
+        assertEquals(1, counts.increment(7));
+        assertEquals(2, counts.increment(7));
+        assertEquals(2, counts.get(7));
+        assertEquals(0, counts.get(8));
+        assertEquals(0, counts.get(-1));
+        assertEquals(1, counts.size());
+    }
+
+    @Test
+    void matchesAHashMapAcrossRehashes() {
+        IntIntCountMap counts = new IntIntCountMap(1);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            int key = random.nextInt(3_000);
+            assertEquals((int) expected.merge(key, 1, Integer::sum), counts.increment(key));
+        }
+        assertEquals(expected.size(), counts.size());
+        Map<Integer, Integer> visited = new HashMap<>();
+        counts.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    void rejectsNegativeKeys() {
+        assertThrows(IllegalArgumentException.class, () -> new IntIntCountMap().increment(-2));
+    }
+}
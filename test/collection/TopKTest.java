@@ -0,0 +1,56 @@
+package com.laioffer.jupiter.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class TopKTest {
+    private static IntIntCountMap countsOf(int... keyCountPairs) {
+        IntIntCountMap counts = new IntIntCountMap();
+        for (int i = 0; i < keyCountPairs.length; i += 2) {
+            for (int c = 0; c < keyCountPairs[i + 1]; c++) {
+                counts.increment(keyCountPairs[i]);
+            }
+        }
+        return counts;
+    }
+
+    @Test
+    void selectsTheHighestCountsInOrder() {
+        IntIntCountMap counts = countsOf(1, 5, 2, 9, 3, 1, 4, 7);
+        assertArrayEquals(new int[]{2, 4, 1}, TopK.select(counts, 3, Integer::compare));
+    }
+
+    @Test
+    void breaksTiesWithTheComparator() {
+        IntIntCountMap counts = countsOf(10, 2, 11, 2, 12, 2, 13, 1);
+        assertArrayEquals(new int[]{10, 11}, TopK.select(counts, 2, Integer::compare));
+        assertArrayEquals(new int[]{12, 11}, TopK.select(counts, 2, (a, b) -> Integer.compare(b, a)));
+    }
+
+    @Test
+    void returnsFewerKeysThanKWhenThereAreFewer() {
+        assertArrayEquals(new int[]{5, 6}, TopK.select(countsOf(5, 3, 6, 1), 10, Integer::compare));
+        assertArrayEquals(new int[0], TopK.select(countsOf(5, 3), 0, Integer::compare));
+        assertArrayEquals(new int[0], TopK.select(new IntIntCountMap(), 3, Integer::compare));
+    }
+
+    @Test
+    void matchesAFullSort() {
+        Random random = new Random(11);
+        IntIntCountMap counts = new IntIntCountMap();
+        for (int i = 0; i < 5_000; i++) {
+            counts.increment(random.nextInt(400));
+        }
+        List<int[]> all = new ArrayList<>();
+        counts.forEach((key, count) -> all.add(new int[]{key, count}));
+        all.sort(Comparator.<int[]>comparingInt(e -> -e[1]).thenComparingInt(e -> e[0]));
+        int[] expected = all.stream().limit(20).mapToInt(e -> e[0]).toArray();
+        assertArrayEquals(expected, TopK.select(counts, 20, Integer::compare));
+    }
+}
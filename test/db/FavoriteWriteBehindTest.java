@@ -0,0 +1,127 @@
+package com.laioffer.jupiter.db;
+
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Surefire enables write-behind with batches of 50 events flushed every 50ms, against the H2 database of TestDataSourceContextFactory
+class FavoriteWriteBehindTest {
+    private static final FavoriteWriteBehind WRITE_BEHIND = FavoriteWriteBehind.getInstance();
+
+    @BeforeAll
+    static void start() throws SQLException {
+        try (Connection conn = TestDataSourceContextFactory.connect(); Statement statement = conn.createStatement()) {
+            statement.executeUpdate("INSERT INTO users VALUES ('alice', 'hash', 'Alice', 'A'), ('bob', 'hash', 'Bob', 'B')");
+        }
+        WRITE_BEHIND.start();
+    }
+
+    @AfterAll
+    static void stop() {
+        WRITE_BEHIND.stop();
+    }
+
+    @AfterEach
+    void makeDatabaseAvailable() {
+        TestDataSourceContextFactory.setAvailable(true);
+    }
+
+    private static Item item(String id) {
+        return new Item.Builder().setId(id).setTitle(id).setType(ItemType.CLIP).setGameId("game").build();
+    }
+
+    private static boolean isFavorite(String userId, String itemId) throws SQLException {
+        try (Connection conn = TestDataSourceContextFactory.connect();
+             PreparedStatement statement = conn.prepareStatement("SELECT 1 FROM favorite_records WHERE user_id = ? AND item_id = ?")) {
+            statement.setString(1, userId);
+            statement.setString(2, itemId);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), () -> "Timed out, write-behind stats " + WRITE_BEHIND.getStats());
+    }
+
+    private static boolean flushed(String userId) {
+        return WRITE_BEHIND.unflushedEvents(userId).isEmpty();
+    }
+
+    @Test
+    void queuedEventsAreWritten() throws Exception {
+        assertEquals(FavoriteWriteBehind.Outcome.QUEUED, WRITE_BEHIND.submit(FavoriteEvent.set("alice", item("queued-1"))));
+        assertEquals(FavoriteWriteBehind.Outcome.QUEUED, WRITE_BEHIND.submit(FavoriteEvent.set("bob", item("queued-2"))));
+        awaitUntil(() -> flushed("alice") && flushed("bob"));
+        assertTrue(isFavorite("alice", "queued-1"));
+        assertTrue(isFavorite("bob", "queued-2"));
+    }
+
+    @Test
+    void lastEventOfTheSameItemWins() throws Exception {
+        long coalesced = WRITE_BEHIND.getStats().get("coalesced");
+        TestDataSourceContextFactory.setAvailable(false);
+        WRITE_BEHIND.submit(FavoriteEvent.set("alice", item("coalesced")));
+        WRITE_BEHIND.submit(FavoriteEvent.unset("alice", item("coalesced")));
+        WRITE_BEHIND.submit(FavoriteEvent.set("alice", item("coalesced")));
+        assertTrue(WRITE_BEHIND.unflushedEvents("alice").get("coalesced").isFavorite());
+        TestDataSourceContextFactory.setAvailable(true);
+        awaitUntil(() -> flushed("alice"));
+        assertTrue(isFavorite("alice", "coalesced"));
+
+        WRITE_BEHIND.submit(FavoriteEvent.unset("alice", item("coalesced")));
+        awaitUntil(() -> flushed("alice"));
+        assertFalse(isFavorite("alice", "coalesced"));
+        assertTrue(WRITE_BEHIND.getStats().get("coalesced") - coalesced >= 1);
+    }
+
+    @Test
+    void unavailableDatabaseIsRetriedWithoutDroppingEvents() throws Exception {
+        long dropped = WRITE_BEHIND.getStats().get("droppedEvents");
+        long failedBatches = WRITE_BEHIND.getStats().get("failedBatches");
+        TestDataSourceContextFactory.setAvailable(false);
+        WRITE_BEHIND.submit(FavoriteEvent.set("bob", item("retried")));
+        // Several flush attempts fail while the database is down
+        awaitUntil(() -> WRITE_BEHIND.getStats().get("failedBatches") - failedBatches >= 4);
+        assertFalse(flushed("bob"));
+        assertFalse(isFavorite("bob", "retried"));
+
+        TestDataSourceContextFactory.setAvailable(true);
+        awaitUntil(() -> flushed("bob"));
+        assertTrue(isFavorite("bob", "retried"));
+        assertEquals(dropped, WRITE_BEHIND.getStats().get("droppedEvents"));
+    }
+
+    @Test
+    void failingEventIsDroppedWithoutBlockingTheOthers() throws Exception {
+        long dropped = WRITE_BEHIND.getStats().get("droppedEvents");
+        TestDataSourceContextFactory.setAvailable(false);
+        // The user does not exist, so the favorite record breaks its foreign key
+        WRITE_BEHIND.submit(FavoriteEvent.set("nobody", item("orphan")));
+        WRITE_BEHIND.submit(FavoriteEvent.set("alice", item("neighbor")));
+        TestDataSourceContextFactory.setAvailable(true);
+        awaitUntil(() -> flushed("nobody") && flushed("alice"));
+        assertTrue(isFavorite("alice", "neighbor"));
+        assertFalse(isFavorite("nobody", "orphan"));
+        assertEquals(dropped + 1, WRITE_BEHIND.getStats().get("droppedEvents"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.laioffer.jupiter.db;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.spi.InitialContextFactory;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Hashtable;
+
+//JNDI context of the tests, set as java.naming.factory.initial by surefire. The container pool MySQLDataSource looks up
+//is replaced by an in-memory H2 database in MySQL mode with the tables of MySQLTableCreator.
+public class TestDataSourceContextFactory implements InitialContextFactory {
+    private static final String JNDI_NAME = "java:comp/env/jdbc/jupiterDB";
+
+    //Connections fail while the database is unavailable, e.g. to test retries
+    private static volatile boolean available = true;
+
+    private static final JdbcDataSource DATABASE = new JdbcDataSource();
+    private static final DataSource DATA_SOURCE = (DataSource) Proxy.newProxyInstance(TestDataSourceContextFactory.class.getClassLoader(),
+            new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getConnection") && !available) {
+                    throw new SQLException("Database unavailable");
+                }
+                try {
+                    return method.invoke(DATABASE, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+
+    static {
+        DATABASE.setURL("jdbc:h2:mem:jupiter;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        try (Connection conn = DATABASE.getConnection(); Statement statement = conn.createStatement()) {
+            statement.executeUpdate("CREATE TABLE items (" +
+                    "id VARCHAR(255) NOT NULL," +
+                    "title VARCHAR(255)," +
+                    "url VARCHAR(255)," +
+                    "thumbnail_url VARCHAR(255)," +
+                    "broadcaster_name VARCHAR(255)," +
+                    "game_id VARCHAR(255)," +
+                    "type VARCHAR(255) NOT NULL," +
+                    "PRIMARY KEY (id))");
+            statement.executeUpdate("CREATE TABLE users (" +
+                    "id VARCHAR(255) NOT NULL," +
+                    "password VARCHAR(255) NOT NULL," +
+                    "first_name VARCHAR(255)," +
+                    "last_name VARCHAR(255)," +
+                    "PRIMARY KEY (id))");
+            statement.executeUpdate("CREATE TABLE favorite_records (" +
+                    "user_id VARCHAR(255) NOT NULL," +
+                    "item_id VARCHAR(255) NOT NULL," +
+                    "last_favor_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP," +
+                    "PRIMARY KEY (user_id,item_id)," +
+                    "FOREIGN KEY (user_id) REFERENCES users(id)," +
+                    "FOREIGN KEY (item_id) REFERENCES items(id))");
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public static void setAvailable(boolean isAvailable) {
+        available = isAvailable;
+    }
+
+    //A connection to the test database that works while it is unavailable to the code under test
+    public static Connection connect() throws SQLException {
+        return DATABASE.getConnection();
+    }
+
+    @Override
+    public Context getInitialContext(Hashtable<?, ?> environment) {
+        return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Context.class}, (proxy, method, args) -> {
+            if (method.getName().equals("lookup") && JNDI_NAME.equals(String.valueOf(args[0]))) {
+                return DATA_SOURCE;
+            }
+            if (method.getName().equals("lookup")) {
+                throw new NameNotFoundException(String.valueOf(args[0]));
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package com.laioffer.jupiter.external;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgedRequestTest {
+    @Test
+    void fastPrimarySendsNoHedge() throws Exception {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        AtomicInteger attempts = new AtomicInteger();
+        String value = new HedgedRequest<String>(() -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture("primary");
+        }).send(50, breaker).get(5, TimeUnit.SECONDS);
+        assertEquals("primary", value);
+        Thread.sleep(100);
+        assertEquals(1, attempts.get());
+        assertEquals(0L, breaker.getStats().get("hedged"));
+    }
+
+    @Test
+    void hedgeWinsOverASlowPrimaryWhichIsCancelled() throws Exception {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        CompletableFuture<String> result = new HedgedRequest<String>(() -> {
+            CompletableFuture<String> attempt = new CompletableFuture<>();
+            synchronized (attempts) {
+                attempts.add(attempt);
+                if (attempts.size() == 2) {
+                    attempt.complete("hedge");
+                }
+            }
+            return attempt;
+        }).send(50, breaker);
+        assertEquals("hedge", result.get(5, TimeUnit.SECONDS));
+        assertTrue(attempts.get(0).isCancelled());
+        assertEquals(1L, breaker.getStats().get("hedged"));
+        assertEquals(1L, breaker.getStats().get("hedgeWins"));
+    }
+
+    @Test
+    void failsOnlyWhenBothAttemptsFail() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        String value = new HedgedRequest<String>(() -> attempts.incrementAndGet() == 1
+                ? CompletableFuture.supplyAsync(() -> {
+                    throw new TwitchException("primary failed");
+                }, CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS))
+                : CompletableFuture.completedFuture("hedge")).send(50, new TwitchCircuitBreaker()).get(5, TimeUnit.SECONDS);
+        assertEquals("hedge", value);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> new HedgedRequest<String>(
+                () -> CompletableFuture.supplyAsync(() -> {
+                    throw new TwitchException("failed");
+                }, CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS))).send(20, new TwitchCircuitBreaker()).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TwitchException.class, e.getCause());
+    }
+
+    @Test
+    void cancellingTheResultCancelsTheAttempts() {
+        CompletableFuture<String> primary = new CompletableFuture<>();
+        CompletableFuture<String> result = new HedgedRequest<String>(() -> primary).send(1000, new TwitchCircuitBreaker());
+        result.cancel(true);
+        assertTrue(primary.isCancelled());
+    }
+}
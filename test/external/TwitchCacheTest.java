@@ -0,0 +1,119 @@
+package com.laioffer.jupiter.external;
+
+import com.laioffer.jupiter.entity.ItemType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// The cache is a singleton, so every test uses keys of its own. Surefire sets the clips TTL to 200ms with a long stale period.
+class TwitchCacheTest {
+    private final TwitchCache cache = TwitchCache.getInstance();
+
+    private static TwitchCache.Key key(TwitchCache.Endpoint endpoint, String gameId) {
+        return new TwitchCache.Key(endpoint, gameId, ItemType.CLIP, 10);
+    }
+
+    private <T> T get(TwitchCache.Key key, Supplier<CompletableFuture<T>> loader) throws Exception {
+        return cache.getAsync(key, loader).get(5, TimeUnit.SECONDS);
+    }
+
+    private static Supplier<CompletableFuture<String>> value(String value) {
+        return () -> CompletableFuture.completedFuture(value);
+    }
+
+    private static <T> Supplier<CompletableFuture<T>> failure(TwitchException e) {
+        return () -> CompletableFuture.failedFuture(e);
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        TwitchCache.Key key = key(TwitchCache.Endpoint.STREAMS, "single-flight");
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(cache.getAsync(key, () -> {
+                loads.incrementAndGet();
+                return upstream;
+            }));
+        }
+        upstream.complete("value");
+        for (CompletableFuture<String> future : futures) {
+            assertEquals("value", future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        assertEquals("value", get(key, value("other")));
+    }
+
+    @Test
+    void cancelledWaiterDoesNotCancelTheLoad() throws Exception {
+        TwitchCache.Key key = key(TwitchCache.Endpoint.STREAMS, "cancelled-waiter");
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        CompletableFuture<String> first = cache.getAsync(key, () -> upstream);
+        CompletableFuture<String> second = cache.getAsync(key, value("other"));
+        first.cancel(true);
+        assertEquals(false, upstream.isCancelled());
+        upstream.complete("value");
+        assertEquals("value", second.get(5, TimeUnit.SECONDS));
+        assertEquals("value", cache.getIfFresh(key));
+    }
+
+    @Test
+    void staleEntryIsServedWhileOneRefreshRuns() throws Exception {
+        TwitchCache.Key key = key(TwitchCache.Endpoint.CLIPS, "stale-while-revalidate");
+        assertEquals("v1", get(key, value("v1")));
+        Thread.sleep(300);
+
+        AtomicInteger refreshes = new AtomicInteger();
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        for (int i = 0; i < 5; i++) {
+            // Served from the stale entry without waiting for the refresh
+            assertEquals("v1", get(key, () -> {
+                refreshes.incrementAndGet();
+                return upstream;
+            }));
+        }
+        upstream.complete("v2");
+        assertEquals("v2", cache.getIfFresh(key));
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void emptyResultIsNotServedStale() throws Exception {
+        TwitchCache.Key key = key(TwitchCache.Endpoint.CLIPS, "negative");
+        assertEquals(Collections.emptyList(), get(key, () -> CompletableFuture.completedFuture(Collections.emptyList())));
+        Thread.sleep(300);
+        assertEquals(List.of("found"), get(key, () -> CompletableFuture.completedFuture(List.of("found"))));
+    }
+
+    @Test
+    void failedLoadIsNotCached() throws Exception {
+        TwitchCache.Key key = key(TwitchCache.Endpoint.STREAMS, "failure");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> get(key, failure(new TwitchException("Twitch is down"))));
+        assertInstanceOf(TwitchException.class, e.getCause());
+        assertEquals("value", get(key, value("value")));
+    }
+
+    @Test
+    void openCircuitFallsBackToTheExpiredEntry() throws Exception {
+        // Surefire sets the videos TTL and stale period to 100ms each
+        TwitchCache.Key key = key(TwitchCache.Endpoint.VIDEOS, "circuit-open");
+        assertEquals("cached", get(key, value("cached")));
+        Thread.sleep(300);
+        assertEquals("cached", get(key, failure(new TwitchCircuitOpenException("open"))));
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> get(key(TwitchCache.Endpoint.VIDEOS, "circuit-open-miss"), failure(new TwitchCircuitOpenException("open"))));
+        assertInstanceOf(TwitchCircuitOpenException.class, e.getCause());
+    }
+}
@@ -0,0 +1,104 @@
+package com.laioffer.jupiter.external;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Surefire sets the open period to 200ms, the window keeps its defaults of 20 calls minimum and a 50% failure rate.
+class TwitchCircuitBreakerTest {
+    private static void call(TwitchCircuitBreaker breaker, boolean fail, long latencyMillis) {
+        assertTrue(breaker.tryAcquire());
+        if (fail) {
+            breaker.onFailure(latencyMillis);
+        } else {
+            breaker.onSuccess(latencyMillis);
+        }
+    }
+
+    private static TwitchCircuitBreaker openBreaker() {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        for (int i = 0; i < 20; i++) {
+            call(breaker, true, 10);
+        }
+        assertEquals(TwitchCircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    @Test
+    void staysClosedBelowTheMinimumNumberOfCalls() {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        for (int i = 0; i < 19; i++) {
+            call(breaker, true, 10);
+        }
+        assertEquals(TwitchCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void staysClosedBelowTheFailureRate() {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        for (int i = 0; i < 50; i++) {
+            call(breaker, i % 3 == 0, 10);
+        }
+        assertEquals(TwitchCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void opensOnSlowCalls() {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        for (int i = 0; i < 20; i++) {
+            call(breaker, false, 5000);
+        }
+        assertEquals(TwitchCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void shortCircuitsWhileOpen() {
+        TwitchCircuitBreaker breaker = openBreaker();
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1L, breaker.getStats().get("shortCircuited"));
+    }
+
+    @Test
+    void halfOpenLetsOneProbeThroughAndClosesOnSuccess() throws Exception {
+        TwitchCircuitBreaker breaker = openBreaker();
+        Thread.sleep(300);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(TwitchCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        breaker.onSuccess(10);
+        assertEquals(TwitchCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void failedProbeOpensAgain() throws Exception {
+        TwitchCircuitBreaker breaker = openBreaker();
+        Thread.sleep(300);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure(10);
+        assertEquals(TwitchCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void ignoredProbeLetsTheNextOneThrough() throws Exception {
+        TwitchCircuitBreaker breaker = openBreaker();
+        Thread.sleep(300);
+        assertTrue(breaker.tryAcquire());
+        breaker.onIgnored();
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void hedgeDelayIsTheP95OfSuccessfulCalls() {
+        TwitchCircuitBreaker breaker = new TwitchCircuitBreaker();
+        for (int i = 1; i <= 19; i++) {
+            call(breaker, false, i * 10);
+        }
+        assertEquals(-1, breaker.getHedgeDelayMillis());
+        call(breaker, false, 200);
+        assertEquals(190, breaker.getHedgeDelayMillis());
+    }
+}
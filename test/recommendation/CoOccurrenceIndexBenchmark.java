@@ -0,0 +1,69 @@
+package com.laioffer.jupiter.recommendation;
+
+import com.laioffer.jupiter.entity.Item;
+import com.laioffer.jupiter.entity.ItemType;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Builds a CoOccurrenceIndex from synthetic favorites with a skewed item popularity and measures the build and the recommendation.
+// Not a test: run it by hand, e.g. java ... CoOccurrenceIndexBenchmark <favorites> <users> <items> <games>, 1000000 50000 200000 2000 by default
+public class CoOccurrenceIndexBenchmark {
+    public static void main(String[] args) throws Exception {
+        int favorites = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int itemCount = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+        int gameCount = args.length > 3 ? Integer.parseInt(args[3]) : 2_000;
+        Item[] catalog = new Item[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            catalog[i] = new Item.Builder().setId("item" + i).setGameId("game" + (i % gameCount))
+                    .setType(ItemType.values()[i % ItemType.values().length]).build();
+        }
+        int perUser = Math.max(1, favorites / users);
+        CoOccurrenceIndex index = new CoOccurrenceIndex();
+        long start = System.nanoTime();
+        index.rebuild(consumer -> {
+            for (int user = 0; user < users; user++) {
+                for (Item item : syntheticFavorites(catalog, user, perUser)) {
+                    consumer.accept("user" + user, item);
+                }
+            }
+        });
+        System.out.println("build: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms with " + CoOccurrenceIndex.BUILD_THREADS + " threads");
+        System.out.println(index.getStats());
+
+        Random random = new Random(7);
+        int lookups = 10_000;
+        long checksum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            List<String> itemIds = new ArrayList<>();
+            for (Item item : syntheticFavorites(catalog, random.nextInt(users), perUser)) {
+                itemIds.add(item.getId());
+            }
+            Set<String> excluded = new HashSet<>(itemIds);
+            for (List<Item> items : index.recommend(itemIds, 20, excluded::contains).values()) {
+                checksum += items.size();
+            }
+        }
+        System.out.println("recommend: " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / lookups + " us per user, "
+                + checksum / lookups + " items per user");
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            int user = random.nextInt(users);
+            index.favoriteAdded("user" + user, catalog[random.nextInt(itemCount)]);
+        }
+        System.out.println("incremental add: " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / lookups + " us per favorite");
+    }
+
+    // The same distinct favorites for the same user, a few popular items are favorite by many users
+    private static Set<Item> syntheticFavorites(Item[] catalog, int user, int count) {
+        Random random = new Random(user);
+        Set<Item> favorites = new LinkedHashSet<>();
+        while (favorites.size() < count) {
+            favorites.add(catalog[(int) (catalog.length * Math.pow(random.nextDouble(), 3))]);
+        }
+        return favorites;
+    }
+}
@@ -0,0 +1,27 @@
+package com.laioffer.jupiter.recommendation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class DefaultRecommendationSnapshotTest {
+    @Test
+    void gzipVariantHasItsOwnEtagAndTheSameContent() throws Exception {
+        DefaultRecommendationSnapshot snapshot = TestSnapshots.of("{\"stream\":[]}");
+        assertNotEquals(snapshot.getEtag(), snapshot.getGzippedEtag());
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(snapshot.getGzippedJson()))) {
+            assertArrayEquals(snapshot.getJson(), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void etagDependsOnTheContentOnly() throws Exception {
+        assertEquals(TestSnapshots.of("{\"a\":1}").getEtag(), TestSnapshots.of("{\"a\":1}").getEtag());
+        assertNotEquals(TestSnapshots.of("{\"a\":1}").getEtag(), TestSnapshots.of("{\"a\":2}").getEtag());
+    }
+}
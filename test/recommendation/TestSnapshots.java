@@ -0,0 +1,14 @@
+package com.laioffer.jupiter.recommendation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Builds snapshots for the tests of other packages, the constructor is only visible here
+public class TestSnapshots {
+    private TestSnapshots() {
+    }
+
+    public static DefaultRecommendationSnapshot of(String json) throws IOException {
+        return new DefaultRecommendationSnapshot(json.getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+    }
+}
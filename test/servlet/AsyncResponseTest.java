@@ -0,0 +1,163 @@
+package com.laioffer.jupiter.servlet;
+
+import com.laioffer.jupiter.external.TwitchHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServlet;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs the servlets in an embedded Tomcat with 4 request threads against a stub of Helix that answers after a delay.
+// Surefire points TwitchClient at the stub with jupiter.twitch.apiUrl and sets the streaming timeout to 1s.
+class AsyncResponseTest {
+    private static final int STUB_PORT = 18089;
+    private static final int REQUEST_THREADS = 4;
+    private static final long STUB_DELAY_MILLIS = 1000;
+
+    private static HttpServer stub;
+    private static ExecutorService stubExecutor;
+    private static final AtomicInteger stubInFlight = new AtomicInteger();
+    private static final AtomicInteger stubPeakInFlight = new AtomicInteger();
+    private static Tomcat tomcat;
+    private static int port;
+    private static final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    @BeforeAll
+    static void start() throws Exception {
+        stub = HttpServer.create(new InetSocketAddress("127.0.0.1", STUB_PORT), 1000);
+        // The stub itself blocks a thread per request, only the server under test must not
+        stubExecutor = Executors.newCachedThreadPool();
+        stub.setExecutor(stubExecutor);
+        stub.createContext("/helix/games", exchange -> {
+            String name = exchange.getRequestURI().getQuery().replace("name=", "");
+            respondSlowly(exchange, STUB_DELAY_MILLIS, "{\"data\":[{\"id\":\"" + name + "\",\"name\":\"" + name + "\",\"box_art_url\":\"\"}]}");
+        });
+        stub.createContext("/helix/clips", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.contains("game_id=stuck")) {
+                respondSlowly(exchange, 3000, "{\"data\":[]}");
+            } else if (query.contains("after=c1")) {
+                respondSlowly(exchange, 0, "{\"data\":[" + clip("3") + "],\"pagination\":{}}");
+            } else {
+                respondSlowly(exchange, 0, "{\"data\":[" + clip("1") + "," + clip("2") + "],\"pagination\":{\"cursor\":\"c1\"}}");
+            }
+        });
+        stub.start();
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+        Connector connector = tomcat.getConnector();
+        connector.setPort(0);
+        connector.setProperty("maxThreads", String.valueOf(REQUEST_THREADS));
+        connector.setProperty("minSpareThreads", String.valueOf(REQUEST_THREADS));
+        Context context = tomcat.addContext("", null);
+        addServlet(context, "/game", new GameServlet());
+        addServlet(context, "/search", new SearchServlet());
+        tomcat.start();
+        port = connector.getLocalPort();
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        stub.stop(0);
+        stubExecutor.shutdownNow();
+    }
+
+    private static void addServlet(Context context, String path, HttpServlet servlet) {
+        String name = servlet.getClass().getSimpleName();
+        Tomcat.addServlet(context, name, servlet).setAsyncSupported(true);
+        context.addServletMappingDecoded(path, name);
+    }
+
+    private static String clip(String id) {
+        return "{\"id\":\"" + id + "\",\"title\":\"clip " + id + "\",\"thumbnail_url\":\"\",\"broadcaster_name\":\"b\",\"url\":\"\"}";
+    }
+
+    private static void respondSlowly(HttpExchange exchange, long delayMillis, String body) throws IOException {
+        stubPeakInFlight.accumulateAndGet(stubInFlight.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(delayMillis);
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stubInFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private static CompletableFuture<HttpResponse<String>> get(String pathAndQuery) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + pathAndQuery)).build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void inFlightRequestsExceedTheRequestThreads() throws Exception {
+        int requests = 200;
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            responses.add(get("/game?game_name=slow" + i));
+        }
+        for (int i = 0; i < requests; i++) {
+            HttpResponse<String> response = responses.get(i).get(30, TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("\"slow" + i + "\""), response.body());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        // With a thread per request in flight, 4 threads would need requests / 4 delays, i.e. 50s
+        assertTrue(elapsed < 10 * STUB_DELAY_MILLIS, "took " + elapsed + " ms");
+        assertTrue(stubPeakInFlight.get() > 10 * REQUEST_THREADS, "peak in flight " + stubPeakInFlight.get());
+        assertTrue(TwitchHttpClient.getStats().get("peakInFlight") > 10 * REQUEST_THREADS);
+        assertEquals(0L, AsyncResponse.getStats().get("inFlight"));
+    }
+
+    @Test
+    void pagedSearchStreamsEveryPage() throws Exception {
+        HttpResponse<String> response = get("/search?game_id=paged&type=CLIP&limit=10").get(10, TimeUnit.SECONDS);
+        assertEquals(200, response.statusCode());
+        String body = response.body();
+        assertTrue(body.startsWith("{\"CLIP\":["), body);
+        assertTrue(body.contains("clip 1") && body.contains("clip 2") && body.contains("clip 3"), body);
+        assertTrue(body.endsWith("]}"), body);
+    }
+
+    @Test
+    void stuckPagedSearchIsBoundedByTheStreamingTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        HttpResponse<String> response = get("/search?game_id=stuck&type=CLIP&limit=10").get(10, TimeUnit.SECONDS);
+        assertEquals(504, response.statusCode());
+        assertTrue(System.currentTimeMillis() - start < 2900, "took " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,125 @@
+package com.laioffer.jupiter.servlet;
+
+import com.laioffer.jupiter.recommendation.DefaultRecommendationSnapshot;
+import com.laioffer.jupiter.recommendation.TestSnapshots;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServletUtilTest {
+    // Records what writePrecomputed() sets on the response
+    private static class RecordedResponse {
+        final Map<String, String> headers = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = HttpServletResponse.SC_OK;
+
+        HttpServletResponse proxy() {
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "setHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "setStatus":
+                                status = (Integer) args[0];
+                                return null;
+                            case "getOutputStream":
+                                return out;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+
+    private static HttpServletRequest request(Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletUtilTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> method.getName().equals("getHeader") ? headers.get((String) args[0]) : null);
+    }
+
+    @Test
+    void acceptsGzipHonorsQualityValues() {
+        assertTrue(ServletUtil.acceptsGzip("gzip, deflate, br"));
+        assertTrue(ServletUtil.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(ServletUtil.acceptsGzip("*"));
+        assertFalse(ServletUtil.acceptsGzip(null));
+        assertFalse(ServletUtil.acceptsGzip("identity"));
+        assertFalse(ServletUtil.acceptsGzip("gzip;q=0"));
+        assertFalse(ServletUtil.acceptsGzip("*;q=0"));
+        assertFalse(ServletUtil.acceptsGzip("gzip;q=0, *"));
+        assertTrue(ServletUtil.acceptsGzip("gzip, *;q=0"));
+    }
+
+    @Test
+    void matchesEtagIsAWeakComparison() {
+        assertTrue(ServletUtil.matchesEtag("\"abc\"", "\"abc\""));
+        assertTrue(ServletUtil.matchesEtag("W/\"abc\"", "\"abc\""));
+        assertTrue(ServletUtil.matchesEtag("\"x\", \"abc\"", "\"abc\""));
+        assertTrue(ServletUtil.matchesEtag("*", "\"abc\""));
+        assertFalse(ServletUtil.matchesEtag(null, "\"abc\""));
+        assertFalse(ServletUtil.matchesEtag("\"abc-gzip\"", "\"abc\""));
+    }
+
+    @Test
+    void sendsTheVariantTheClientAccepts() throws Exception {
+        DefaultRecommendationSnapshot snapshot = TestSnapshots.of("{\"stream\":[]}");
+
+        RecordedResponse identity = new RecordedResponse();
+        ServletUtil.writePrecomputed(request(Map.of()), identity.proxy(), snapshot);
+        assertEquals(snapshot.getEtag(), identity.headers.get("ETag"));
+        assertNull(identity.headers.get("Content-Encoding"));
+        assertArrayEquals(snapshot.getJson(), identity.body.toByteArray());
+
+        RecordedResponse gzip = new RecordedResponse();
+        ServletUtil.writePrecomputed(request(Map.of("Accept-Encoding", "gzip")), gzip.proxy(), snapshot);
+        assertEquals(snapshot.getGzippedEtag(), gzip.headers.get("ETag"));
+        assertEquals("gzip", gzip.headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzip.headers.get("Vary"));
+        assertArrayEquals(snapshot.getGzippedJson(), gzip.body.toByteArray());
+    }
+
+    @Test
+    void answersNotModifiedOnlyForTheSameVariant() throws Exception {
+        DefaultRecommendationSnapshot snapshot = TestSnapshots.of("{\"clip\":[]}");
+
+        RecordedResponse notModified = new RecordedResponse();
+        ServletUtil.writePrecomputed(request(Map.of("Accept-Encoding", "gzip", "If-None-Match", snapshot.getGzippedEtag())),
+                notModified.proxy(), snapshot);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.status);
+        assertEquals(0, notModified.body.size());
+
+        // The client cached the gzip variant but no longer accepts gzip
+        RecordedResponse otherVariant = new RecordedResponse();
+        ServletUtil.writePrecomputed(request(Map.of("If-None-Match", snapshot.getGzippedEtag())), otherVariant.proxy(), snapshot);
+        assertEquals(HttpServletResponse.SC_OK, otherVariant.status);
+        assertArrayEquals(snapshot.getJson(), otherVariant.body.toByteArray());
+    }
+}